@@ -0,0 +1,68 @@
+/*
+ * Stores the volume in a single contiguous short array on the heap
+ * This avoids the array header and pointer hop per row that a short[][][] costs
+ */
+public class ArrayVolumeStore implements VolumeStore {
+	private final int width;
+	private final int depth;
+	private final int height;
+	
+	private final short[] data;
+	
+	public ArrayVolumeStore(int width, int depth, int height) {
+		this(width, depth, height, new short[checkedSize(width, depth, height)]);
+	}
+	
+	public ArrayVolumeStore(int width, int depth, int height, short[] data) {
+		if(data.length != checkedSize(width, depth, height)) {
+			throw new IllegalArgumentException("Expected " + ((long) width * depth * height) + " voxels but got " + data.length);
+		}
+		
+		this.width = width;
+		this.depth = depth;
+		this.height = height;
+		this.data = data;
+	}
+	
+	@Override
+	public short get(int x, int y, int z) {
+		return data[(z * depth + y) * width + x];
+	}
+	
+	@Override
+	public void set(int x, int y, int z, short val) {
+		data[(z * depth + y) * width + x] = val;
+	}
+	
+	/*
+	 * Returns the backing array, with voxel (x, y, z) at index (z * depth + y) * width + x
+	 */
+	public short[] getData() {
+		return data;
+	}
+	
+	@Override
+	public int getWidth() {
+		return width;
+	}
+	@Override
+	public int getDepth() {
+		return depth;
+	}
+	@Override
+	public int getHeight() {
+		return height;
+	}
+	
+	static int checkedSize(int width, int depth, int height) {
+		if(width <= 0 || depth <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Invalid volume dimensions: " + width + "x" + depth + "x" + height);
+		}
+		
+		long size = (long) width * depth * height;
+		if(size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Volume of " + size + " voxels is too large to index with an int");
+		}
+		return (int) size;
+	}
+}
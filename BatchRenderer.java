@@ -0,0 +1,313 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/*
+ * Renders stacks of slices or rotation sweeps without a display, for use on headless machines
+ * 
+ * Usage: java BatchRenderer <volume> <width> <height> <depth> <job> [options]
+ *   A .vdc volume written by CompressedVolumeFile carries its own size, so width, height and depth are ignored for it
+ *   Jobs:
+ *     slices:<X|Y|Z>:<w>x<h>            every slice along an axis
+ *     sweep:<pitch|yaw|roll>:<n>:<w>x<h> n MIP frames turning a full circle about one axis
+ *   Options:
+ *     --out <dir>              where frames are written (default frames)
+ *     --format <png|raw>       one PNG per frame, or every frame's BGR bytes in order in frames.raw (default png)
+ *     --interpolation <name>   Linear or NearestNeighbour (default Linear)
+ *     --equalize               equalize slices
+ *     --full-resolution        sample the full volume for small frames too, instead of a halved copy
+ *     --threshold <value>      MIP threshold (default the max of the volume)
+ *     --byte-volume <spec>     keep the volume in 8 bits, quantized by equalized or level,window
+ *     --ray-sampling <name>    Fixed, HalfVoxel, OneVoxel or TwoVoxels spacing of MIP samples (default Fixed)
+ *     --render-mode <name>     MIP or Composite for sweeps (default MIP)
+ *     --header-offset <bytes>  bytes to skip at the start of the volume file
+ *     --threads <n>            frames rendered at once (default the number of processors)
+ *     --in-flight <n>          most frames held in memory at once (default twice the threads)
+ */
+public class BatchRenderer {
+	// Renders one frame of a job into the image it is given
+	private interface FrameJob {
+		int getFrameCount();
+		void render(VolumeData vd, int frame, BufferedImage image);
+	}
+	
+	private final VolumeData vd;
+	private final FrameJob job;
+	private final int imageWidth;
+	private final int imageHeight;
+	private final File outDir;
+	private final boolean raw;
+	private final int threads;
+	private final Semaphore inFlight;
+	
+	// Used for the raw stream, which must be written in frame order, guarded by this renderer
+	private OutputStream rawOut;
+	private final Map<Integer, BufferedImage> waiting = new HashMap<Integer, BufferedImage>();
+	private int nextFrame;
+	private IOException writeError;
+	
+	private BatchRenderer(VolumeData vd, FrameJob job, int imageWidth, int imageHeight, File outDir, boolean raw, int threads, int maxInFlight) {
+		this.vd = vd;
+		this.job = job;
+		this.imageWidth = imageWidth;
+		this.imageHeight = imageHeight;
+		this.outDir = outDir;
+		this.raw = raw;
+		this.threads = threads;
+		inFlight = new Semaphore(maxInFlight);
+	}
+	
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		
+		if(args.length < 5) {
+			System.out.println("Usage: java BatchRenderer <volume> <width> <height> <depth> <job> [options]");
+			System.out.println("See BatchRenderer.java for the jobs and options");
+			System.exit(1);
+		}
+		
+		String filename = args[0];
+		int dataWidth = Integer.parseInt(args[1]);
+		int dataHeight = Integer.parseInt(args[2]);
+		int dataDepth = Integer.parseInt(args[3]);
+		String[] spec = args[4].split(":");
+		
+		File outDir = new File("frames");
+		boolean raw = false;
+		VolumeData.Interpolation interpolation = VolumeData.Interpolation.Linear;
+		boolean equalize = false;
+		Short threshold = null;
+		VolumeData.RaySampling raySampling = VolumeData.RaySampling.Fixed;
+		VolumeData.RenderMode renderMode = VolumeData.RenderMode.MIP;
+		String byteVolume = null;
+		boolean fullResolution = false;
+		long headerOffset = 0;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int maxInFlight = -1;
+		
+		for(int i = 5; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("--equalize")) {
+				equalize = true;
+				continue;
+			}
+			if(arg.equals("--full-resolution")) {
+				fullResolution = true;
+				continue;
+			}
+			if(i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + arg);
+			}
+			String value = args[++i];
+			
+			if(arg.equals("--out")) {
+				outDir = new File(value);
+			} else if(arg.equals("--format")) {
+				if(!value.equals("png") && !value.equals("raw")) {
+					throw new IllegalArgumentException("Unknown format " + value);
+				}
+				raw = value.equals("raw");
+			} else if(arg.equals("--interpolation")) {
+				interpolation = VolumeData.Interpolation.valueOf(value);
+			} else if(arg.equals("--threshold")) {
+				threshold = Short.parseShort(value);
+			} else if(arg.equals("--byte-volume")) {
+				byteVolume = value;
+			} else if(arg.equals("--ray-sampling")) {
+				raySampling = VolumeData.RaySampling.valueOf(value);
+			} else if(arg.equals("--render-mode")) {
+				renderMode = VolumeData.RenderMode.valueOf(value);
+			} else if(arg.equals("--header-offset")) {
+				headerOffset = Long.parseLong(value);
+			} else if(arg.equals("--threads")) {
+				threads = Integer.parseInt(value);
+			} else if(arg.equals("--in-flight")) {
+				maxInFlight = Integer.parseInt(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+		if(maxInFlight < 1) {
+			maxInFlight = 2 * threads;
+		}
+		
+		String[] size = spec[spec.length - 1].split("x");
+		int imageWidth = Integer.parseInt(size[0]);
+		int imageHeight = Integer.parseInt(size[size.length - 1]);
+		
+		long loadStart = System.nanoTime();
+		VolumeData vd;
+		if(filename.endsWith(CompressedVolumeFile.EXTENSION)) {
+			try(CompressedVolumeFile file = new CompressedVolumeFile(filename)) {
+				vd = new VolumeData(file);
+			}
+		} else {
+			vd = new VolumeData(filename, dataWidth, dataHeight, dataDepth, headerOffset);
+		}
+		if(byteVolume != null) {
+			vd.setVolumeStore(vd.quantizeVolume(byteVolume));
+		}
+		// Frames are rendered in parallel already, so each frame is rendered on a single thread
+		vd.setRenderThreads(1);
+		if(threshold != null) {
+			vd.setMIPThreshold(threshold);
+		}
+		vd.setRaySampling(raySampling);
+		vd.setRenderMode(renderMode);
+		vd.setLevelOfDetail(!fullResolution);
+		System.out.println(String.format(Locale.ROOT, "Loaded %s in %.1f ms", filename, (System.nanoTime() - loadStart) / 1e6));
+		
+		FrameJob job;
+		if(spec[0].equals("slices") && spec.length == 3) {
+			job = sliceJob(vd, VolumeData.Axis.valueOf(spec[1]), interpolation, equalize);
+		} else if(spec[0].equals("sweep") && spec.length == 4) {
+			job = sweepJob(spec[1], Integer.parseInt(spec[2]), interpolation);
+		} else {
+			throw new IllegalArgumentException("Unknown job " + args[4]);
+		}
+		
+		new BatchRenderer(vd, job, imageWidth, imageHeight, outDir, raw, threads, maxInFlight).run();
+	}
+	
+	private static FrameJob sliceJob(VolumeData vd, final VolumeData.Axis axis, final VolumeData.Interpolation interpolation, final boolean equalize) {
+		final int slices;
+		switch(axis) {
+		case X:
+			slices = vd.getDataWidth();
+			break;
+		case Y:
+			slices = vd.getDataDepth();
+			break;
+		default:
+			slices = vd.getDataHeight();
+			break;
+		}
+		
+		return new FrameJob() {
+			@Override
+			public int getFrameCount() {
+				return slices;
+			}
+			
+			@Override
+			public void render(VolumeData vd, int frame, BufferedImage image) {
+				vd.sliceImage(image, axis, frame, interpolation, equalize);
+			}
+		};
+	}
+	
+	private static FrameJob sweepJob(final String rotation, final int frames, final VolumeData.Interpolation interpolation) {
+		if(!rotation.equals("pitch") && !rotation.equals("yaw") && !rotation.equals("roll")) {
+			throw new IllegalArgumentException("Unknown rotation " + rotation);
+		}
+		
+		return new FrameJob() {
+			@Override
+			public int getFrameCount() {
+				return frames;
+			}
+			
+			@Override
+			public void render(VolumeData vd, int frame, BufferedImage image) {
+				double angle = 2 * Math.PI * frame / frames;
+				vd.getRotatedImage(image,
+						rotation.equals("pitch") ? angle : 0,
+						rotation.equals("yaw") ? angle : 0,
+						rotation.equals("roll") ? angle : 0,
+						interpolation);
+			}
+		};
+	}
+	
+	private void run() throws IOException, InterruptedException {
+		if(!outDir.isDirectory() && !outDir.mkdirs()) {
+			throw new IOException("Could not create " + outDir);
+		}
+		if(raw) {
+			rawOut = new BufferedOutputStream(new FileOutputStream(new File(outDir, "frames.raw")), 1 << 20);
+		}
+		
+		int frames = job.getFrameCount();
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		
+		for(int i = 0; i < frames; i++) {
+			// Wait for a frame to be written out before starting another, which bounds the memory used
+			inFlight.acquire();
+			final int frame = i;
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						BufferedImage image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_3BYTE_BGR);
+						job.render(vd, frame, image);
+						write(frame, image);
+					} catch(IOException | RuntimeException e) {
+						failed(e instanceof IOException ? (IOException) e : new IOException(e));
+					}
+				}
+			});
+			
+			synchronized(this) {
+				if(writeError != null) {
+					break;
+				}
+			}
+		}
+		
+		workers.shutdown();
+		workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		if(rawOut != null) {
+			rawOut.close();
+		}
+		
+		synchronized(this) {
+			if(writeError != null) {
+				throw writeError;
+			}
+		}
+		
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format(Locale.ROOT, "Rendered %d frames of %dx%d in %.2f s (%.1f frames per second)",
+				frames, imageWidth, imageHeight, seconds, frames / seconds));
+		System.out.println(vd.getMetrics().getSummary());
+	}
+	
+	private void write(int frame, BufferedImage image) throws IOException {
+		if(!raw) {
+			ImageIO.write(image, "png", new File(outDir, String.format("frame%05d.png", frame)));
+			inFlight.release();
+			return;
+		}
+		
+		// Hold frames that finish early until every frame before them has been written
+		synchronized(this) {
+			waiting.put(frame, image);
+			while(waiting.containsKey(nextFrame)) {
+				rawOut.write(VolumeData.getImageData(waiting.remove(nextFrame)));
+				nextFrame++;
+				inFlight.release();
+			}
+		}
+	}
+	
+	private synchronized void failed(IOException e) {
+		if(writeError == null) {
+			writeError = e;
+		}
+		// Let the main thread stop submitting rather than wait forever for a permit
+		inFlight.release(job.getFrameCount());
+	}
+}
@@ -0,0 +1,324 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Keeps a volume on disk split into cubic bricks, and only loads the bricks that are read
+ * Loaded bricks are held in a cache with a fixed byte budget, and a brick that hasn't been read
+ * recently is dropped when a new one would take the cache over budget
+ * Eviction uses the clock algorithm, an approximation of least recently used that keeps hits lock free
+ * and finds a brick to drop in constant time on average
+ * 
+ * File layout (all little endian):
+ *   int magic, int width, int depth, int height, int brickSize
+ *   bricks ordered by z, then y, then x, each brickSize^3 shorts with x varying fastest
+ * Bricks on the far edges are padded out to the full brick size
+ */
+public class BrickedVolumeStore implements VolumeStore {
+	public static final int DEFAULT_BRICK_SIZE = 32;
+	
+	/*
+	 * Given each brick by readBricks, brickSize^3 values with x varying fastest
+	 * Values past the far edges of the volume are padding and should be ignored
+	 */
+	public interface BrickVisitor {
+		void visit(int bx, int by, int bz, short[] data);
+	}
+	
+	private static final int MAGIC = 0x42564456; // "VDVB"
+	private static final int HEADER_BYTES = 5 * 4;
+	
+	private final FileChannel channel;
+	
+	private final int width;
+	private final int depth;
+	private final int height;
+	
+	private final int brickSize;
+	private final int brickShift;
+	private final int brickMask;
+	private final int brickBytes;
+	private final int bricksX;
+	private final int bricksY;
+	private final int bricksZ;
+	
+	// Loaded bricks are indexed by brick number so a hit needs no locking
+	private final AtomicReferenceArray<short[]> bricks;
+	// Set to 1 when a loaded brick is read, and cleared as the clock hand passes it
+	private final AtomicIntegerArray referenced;
+	
+	// The rest is guarded by this store
+	private final int maxResident;
+	private int resident;
+	private final int[] residentBricks;
+	private int hand;
+	
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	
+	public BrickedVolumeStore(String filename, long cacheBytes) throws IOException {
+		channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(header, 0);
+		header.flip();
+		
+		if(header.getInt() != MAGIC) {
+			channel.close();
+			throw new IOException(filename + " is not a bricked volume file");
+		}
+		width = header.getInt();
+		depth = header.getInt();
+		height = header.getInt();
+		brickSize = header.getInt();
+		
+		if(Integer.bitCount(brickSize) != 1) {
+			channel.close();
+			throw new IOException("Brick size must be a power of two: " + brickSize);
+		}
+		brickShift = Integer.numberOfTrailingZeros(brickSize);
+		brickMask = brickSize - 1;
+		brickBytes = 2 * brickSize * brickSize * brickSize;
+		bricksX = (width + brickMask) >> brickShift;
+		bricksY = (depth + brickMask) >> brickShift;
+		bricksZ = (height + brickMask) >> brickShift;
+		
+		int brickCount = bricksX * bricksY * bricksZ;
+		bricks = new AtomicReferenceArray<short[]>(brickCount);
+		referenced = new AtomicIntegerArray(brickCount);
+		
+		// Always allow at least one brick, otherwise nothing could ever be read
+		maxResident = (int) Math.max(1, Math.min(brickCount, cacheBytes / brickBytes));
+		residentBricks = new int[maxResident];
+	}
+	
+	@Override
+	public short get(int x, int y, int z) {
+		int brick = ((z >> brickShift) * bricksY + (y >> brickShift)) * bricksX + (x >> brickShift);
+		
+		short[] data = bricks.get(brick);
+		if(data == null) {
+			data = load(brick);
+		} else {
+			hits.increment();
+			// Checking first saves hot bricks from a write on every read
+			if(referenced.get(brick) == 0) {
+				referenced.set(brick, 1);
+			}
+		}
+		
+		return data[((((z & brickMask) << brickShift) + (y & brickMask)) << brickShift) + (x & brickMask)];
+	}
+	
+	@Override
+	public void set(int x, int y, int z, short val) {
+		throw new UnsupportedOperationException("Bricked volumes are read only");
+	}
+	
+	/*
+	 * Reads a brick in from disk, evicting a brick that hasn't been read since the clock hand last passed it
+	 * if the cache is full
+	 */
+	private synchronized short[] load(int brick) {
+		// Another thread may have loaded it while we waited for the lock
+		short[] data = bricks.get(brick);
+		if(data != null) {
+			hits.increment();
+			return data;
+		}
+		misses.increment();
+		
+		data = new short[brickBytes / 2];
+		ByteBuffer buffer = ByteBuffer.allocate(brickBytes).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			readFully(buffer, HEADER_BYTES + (long) brick * brickBytes);
+		} catch(IOException e) {
+			throw new IllegalStateException("Could not read brick " + brick, e);
+		}
+		buffer.flip();
+		buffer.asShortBuffer().get(data);
+		
+		int slot;
+		if(resident < maxResident) {
+			slot = resident++;
+		} else {
+			// Bricks read since the hand last passed get a second chance, so the hand finds one within a turn
+			// unless every brick is read again while it goes round
+			while(referenced.getAndSet(residentBricks[hand], 0) != 0) {
+				hand = (hand + 1) % maxResident;
+			}
+			slot = hand;
+			hand = (hand + 1) % maxResident;
+			// Threads still holding the evicted array can keep reading it safely
+			bricks.set(residentBricks[slot], null);
+			evictions.increment();
+		}
+		
+		residentBricks[slot] = brick;
+		referenced.set(brick, 1);
+		bricks.set(brick, data);
+		return data;
+	}
+	
+	/*
+	 * Reads every brick in layers bzStart to bzEnd straight from the file, in file order, without going through
+	 * the cache, so a pass over the whole volume (such as gathering its statistics) doesn't evict the bricks views use
+	 * Layers can be read by several threads at once
+	 */
+	public void readBricks(int bzStart, int bzEnd, BrickVisitor visitor) throws IOException {
+		short[] data = new short[brickBytes / 2];
+		ByteBuffer buffer = ByteBuffer.allocate(brickBytes).order(ByteOrder.LITTLE_ENDIAN);
+		for(int bz = bzStart; bz < bzEnd; bz++) {
+			for(int by = 0; by < bricksY; by++) {
+				for(int bx = 0; bx < bricksX; bx++) {
+					buffer.clear();
+					readFully(buffer, HEADER_BYTES + (long) ((bz * bricksY + by) * bricksX + bx) * brickBytes);
+					buffer.flip();
+					buffer.asShortBuffer().get(data);
+					visitor.visit(bx, by, bz, data);
+				}
+			}
+		}
+	}
+	
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if(read < 0) {
+				throw new EOFException("Bricked volume file ends early");
+			}
+			position += read;
+		}
+	}
+	
+	/*
+	 * Writes a volume out as a bricked file
+	 */
+	public static void write(VolumeStore source, String filename, int brickSize) throws IOException {
+		try(FileChannel out = createBrickFile(filename, source.getWidth(), source.getDepth(), source.getHeight(), brickSize)) {
+			for(int z = 0; z < source.getHeight(); z += brickSize) {
+				writeLayer(out, source, z, brickSize);
+			}
+		}
+	}
+	
+	/*
+	 * Converts a raw volume file into a bricked file one layer of bricks at a time,
+	 * so volumes far larger than the heap can be converted
+	 */
+	public static void convertRaw(String rawFilename, int dataWidth, int dataDepth, int dataHeight, long headerOffset,
+			String filename, int brickSize) throws IOException {
+		long planeBytes = 2L * dataWidth * dataDepth;
+		
+		try(FileChannel in = FileChannel.open(Paths.get(rawFilename), StandardOpenOption.READ);
+				FileChannel out = createBrickFile(filename, dataWidth, dataDepth, dataHeight, brickSize)) {
+			if(in.size() < headerOffset + planeBytes * dataHeight) {
+				throw new EOFException("File " + rawFilename + " is too short for a " + dataWidth + "x" + dataDepth + "x" + dataHeight + " volume");
+			}
+			
+			for(int z = 0; z < dataHeight; z += brickSize) {
+				int planes = Math.min(brickSize, dataHeight - z);
+				ByteBuffer layer = in.map(FileChannel.MapMode.READ_ONLY, headerOffset + planeBytes * z, planeBytes * planes);
+				VolumeStore layerStore = new BufferVolumeStore(dataWidth, dataDepth, planes, layer.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer());
+				writeLayer(out, layerStore, 0, brickSize);
+			}
+		}
+	}
+	
+	private static FileChannel createBrickFile(String filename, int width, int depth, int height, int brickSize) throws IOException {
+		if(Integer.bitCount(brickSize) != 1) {
+			throw new IllegalArgumentException("Brick size must be a power of two: " + brickSize);
+		}
+		
+		FileChannel out = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(width).putInt(depth).putInt(height).putInt(brickSize);
+		header.flip();
+		while(header.hasRemaining()) {
+			out.write(header);
+		}
+		return out;
+	}
+	
+	/*
+	 * Appends the row of bricks starting at plane z0 of the source
+	 */
+	private static void writeLayer(FileChannel out, VolumeStore source, int z0, int brickSize) throws IOException {
+		int width = source.getWidth();
+		int depth = source.getDepth();
+		int z1 = Math.min(z0 + brickSize, source.getHeight());
+		
+		ByteBuffer brick = ByteBuffer.allocate(2 * brickSize * brickSize * brickSize).order(ByteOrder.LITTLE_ENDIAN);
+		for(int y0 = 0; y0 < depth; y0 += brickSize) {
+			for(int x0 = 0; x0 < width; x0 += brickSize) {
+				brick.clear();
+				for(int z = z0; z < z0 + brickSize; z++) {
+					for(int y = y0; y < y0 + brickSize; y++) {
+						for(int x = x0; x < x0 + brickSize; x++) {
+							boolean inside = x < width && y < depth && z < z1;
+							brick.putShort(inside ? source.get(x, y, z) : 0);
+						}
+					}
+				}
+				brick.flip();
+				while(brick.hasRemaining()) {
+					out.write(brick);
+				}
+			}
+		}
+	}
+	
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+	public long getCacheHits() {
+		return hits.sum();
+	}
+	public long getCacheMisses() {
+		return misses.sum();
+	}
+	public long getCacheEvictions() {
+		return evictions.sum();
+	}
+	public synchronized int getResidentBricks() {
+		return resident;
+	}
+	public long getCacheCapacityBytes() {
+		return (long) maxResident * brickBytes;
+	}
+	public int getBrickSize() {
+		return brickSize;
+	}
+	public int getBricksX() {
+		return bricksX;
+	}
+	public int getBricksY() {
+		return bricksY;
+	}
+	public int getBricksZ() {
+		return bricksZ;
+	}
+	
+	@Override
+	public int getWidth() {
+		return width;
+	}
+	@Override
+	public int getDepth() {
+		return depth;
+	}
+	@Override
+	public int getHeight() {
+		return height;
+	}
+}
@@ -0,0 +1,136 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/*
+ * Stores the volume in a ShortBuffer, which is normally direct so the voxels live off the heap
+ * and are never touched by the garbage collector
+ * A buffer holds at most 2GB, so larger volumes are split over several, each holding a run of z planes
+ */
+public class BufferVolumeStore implements VolumeStore {
+	private final int width;
+	private final int depth;
+	private final int height;
+	
+	// The whole volume, or null if it is split into runs
+	private final ShortBuffer data;
+	// Run z >> runShift holds planes from its first plane, each run but the last holds 1 << runShift planes
+	private final ShortBuffer[] runs;
+	private final int runShift;
+	private final int runMask;
+	
+	public BufferVolumeStore(int width, int depth, int height, ShortBuffer data) {
+		int size = ArrayVolumeStore.checkedSize(width, depth, height);
+		if(data.remaining() < size) {
+			throw new IllegalArgumentException("Expected " + size + " voxels but the buffer only holds " + data.remaining());
+		}
+		
+		this.width = width;
+		this.depth = depth;
+		this.height = height;
+		// Slice so that index 0 is always the first voxel, whatever the position of the buffer passed in
+		this.data = data.slice();
+		runs = null;
+		runShift = 0;
+		runMask = 0;
+	}
+	
+	/*
+	 * Stores the volume split over several buffers, each holding runPlanes z planes apart from the last
+	 * runPlanes must be a power of two
+	 */
+	public BufferVolumeStore(int width, int depth, int height, int runPlanes, ShortBuffer[] runs) {
+		ArrayVolumeStore.checkedSize(width, depth, height);
+		if(Integer.bitCount(runPlanes) != 1) {
+			throw new IllegalArgumentException("Planes per run must be a power of two: " + runPlanes);
+		}
+		if(runs.length != (height + runPlanes - 1) / runPlanes) {
+			throw new IllegalArgumentException("Expected " + ((height + runPlanes - 1) / runPlanes) + " runs of " + runPlanes + " planes but got " + runs.length);
+		}
+		
+		this.width = width;
+		this.depth = depth;
+		this.height = height;
+		data = null;
+		this.runs = new ShortBuffer[runs.length];
+		runShift = Integer.numberOfTrailingZeros(runPlanes);
+		runMask = runPlanes - 1;
+		
+		for(int i = 0; i < runs.length; i++) {
+			int size = Math.min(runPlanes, height - i * runPlanes) * depth * width;
+			if(runs[i].remaining() < size) {
+				throw new IllegalArgumentException("Expected " + size + " voxels in run " + i + " but the buffer only holds " + runs[i].remaining());
+			}
+			this.runs[i] = runs[i].slice();
+		}
+	}
+	
+	/*
+	 * Allocates a zeroed volume in native memory
+	 */
+	public static BufferVolumeStore allocateDirect(int width, int depth, int height) {
+		int size = ArrayVolumeStore.checkedSize(width, depth, height);
+		if(2L * size <= Integer.MAX_VALUE) {
+			ShortBuffer buffer = ByteBuffer.allocateDirect(size * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+			return new BufferVolumeStore(width, depth, height, buffer);
+		}
+		
+		int runPlanes = runPlanes(width, depth);
+		ShortBuffer[] runs = new ShortBuffer[(height + runPlanes - 1) / runPlanes];
+		for(int i = 0; i < runs.length; i++) {
+			int planes = Math.min(runPlanes, height - i * runPlanes);
+			runs[i] = ByteBuffer.allocateDirect(2 * planes * depth * width).order(ByteOrder.nativeOrder()).asShortBuffer();
+		}
+		return new BufferVolumeStore(width, depth, height, runPlanes, runs);
+	}
+	
+	/*
+	 * The most planes, as a power of two, that fit in one buffer of at most 2GB
+	 */
+	static int runPlanes(int width, int depth) {
+		long planeBytes = 2L * width * depth;
+		if(planeBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("A plane of " + planeBytes + " bytes is too large to hold in one buffer");
+		}
+		return Integer.highestOneBit((int) (Integer.MAX_VALUE / planeBytes));
+	}
+	
+	@Override
+	public short get(int x, int y, int z) {
+		if(data != null) {
+			return data.get((z * depth + y) * width + x);
+		}
+		return runs[z >> runShift].get(((z & runMask) * depth + y) * width + x);
+	}
+	
+	@Override
+	public void set(int x, int y, int z, short val) {
+		if(data != null) {
+			data.put((z * depth + y) * width + x, val);
+		} else {
+			runs[z >> runShift].put(((z & runMask) * depth + y) * width + x, val);
+		}
+	}
+	
+	/*
+	 * Returns the backing buffer, with voxel (x, y, z) at index (z * depth + y) * width + x,
+	 * or null if the volume is split into runs
+	 * Only use absolute gets and puts on it, as its position is shared by every thread
+	 */
+	public ShortBuffer getBuffer() {
+		return data;
+	}
+	
+	@Override
+	public int getWidth() {
+		return width;
+	}
+	@Override
+	public int getDepth() {
+		return depth;
+	}
+	@Override
+	public int getHeight() {
+		return height;
+	}
+}
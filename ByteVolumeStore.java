@@ -0,0 +1,158 @@
+import java.util.Arrays;
+
+/*
+ * Stores the volume in 8 bits per voxel, half the memory of the other stores
+ * Each of the 256 levels stands for one 16-bit value, which is what get returns, so the renderers,
+ * colour table and statistics all work on it unchanged
+ *
+ * Values are turned into levels either linearly across a window, or through the histogram
+ * equalization mapping so that each level holds about the same number of voxels
+ */
+public class ByteVolumeStore implements VolumeStore {
+	public static final int LEVELS = 256;
+	
+	private final int width;
+	private final int depth;
+	private final int height;
+	
+	private final byte[] data;
+	// Level each 16-bit value is stored as, indexed by value - Short.MIN_VALUE
+	private final byte[] encode;
+	// Value each level stands for
+	private final short[] decode;
+	
+	public ByteVolumeStore(int width, int depth, int height, byte[] encode, short[] decode) {
+		if(encode.length != 1 << 16 || decode.length != LEVELS) {
+			throw new IllegalArgumentException("Expected a 65536 entry encoding and a " + LEVELS + " entry decoding");
+		}
+		
+		this.width = width;
+		this.depth = depth;
+		this.height = height;
+		this.data = new byte[ArrayVolumeStore.checkedSize(width, depth, height)];
+		this.encode = encode;
+		this.decode = decode;
+	}
+	
+	/*
+	 * Quantizes a volume linearly across the window centred on level, values outside it are clamped to its edges
+	 */
+	public static ByteVolumeStore quantizeWindow(VolumeStore source, int level, int window, RenderPool pool) {
+		if(window < 1) {
+			throw new IllegalArgumentException("Window must be at least 1: " + window);
+		}
+		
+		int low = level - window / 2;
+		byte[] encode = new byte[1 << 16];
+		for(int v = Short.MIN_VALUE; v <= Short.MAX_VALUE; v++) {
+			long scaled = Math.round((v - low) * (LEVELS - 1) / (double) window);
+			encode[v - Short.MIN_VALUE] = (byte) Math.max(0, Math.min(LEVELS - 1, scaled));
+		}
+		
+		short[] decode = new short[LEVELS];
+		for(int i = 0; i < LEVELS; i++) {
+			long value = low + Math.round(i * (double) window / (LEVELS - 1));
+			decode[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+		}
+		
+		return quantize(source, encode, decode, pool);
+	}
+	
+	/*
+	 * Quantizes a volume through its histogram equalization mapping, giving the most levels to the most common values
+	 * Each level stands for the value half way through the range of values stored as it
+	 */
+	public static ByteVolumeStore quantizeEqualized(VolumeStore source, VolumeStatistics statistics, RenderPool pool) {
+		short min = statistics.getMin();
+		short max = statistics.getMax();
+		short[] mapping = statistics.getEqualizationMapping();
+		int range = Math.max(1, max - min);
+		
+		byte[] encode = new byte[1 << 16];
+		int[] first = new int[LEVELS];
+		int[] last = new int[LEVELS];
+		Arrays.fill(first, Integer.MAX_VALUE);
+		for(int v = Short.MIN_VALUE; v <= Short.MAX_VALUE; v++) {
+			int level;
+			if(v < min) {
+				level = 0;
+			} else if(v > max) {
+				level = LEVELS - 1;
+			} else {
+				level = (mapping[v - min] - min) * (LEVELS - 1) / range;
+				first[level] = Math.min(first[level], v);
+				last[level] = v;
+			}
+			encode[v - Short.MIN_VALUE] = (byte) level;
+		}
+		
+		// Levels nothing maps to are never stored, but give them the value before so decoding stays in order
+		short[] decode = new short[LEVELS];
+		short previous = min;
+		for(int i = 0; i < LEVELS; i++) {
+			if(first[i] != Integer.MAX_VALUE) {
+				previous = (short) ((first[i] + last[i]) / 2);
+			}
+			decode[i] = previous;
+		}
+		
+		return quantize(source, encode, decode, pool);
+	}
+	
+	private static ByteVolumeStore quantize(final VolumeStore source, byte[] encode, short[] decode, RenderPool pool) {
+		final int width = source.getWidth();
+		final int depth = source.getDepth();
+		final ByteVolumeStore store = new ByteVolumeStore(width, depth, source.getHeight(), encode, decode);
+		
+		pool.forEachBand(source.getHeight(), new RenderPool.BandRenderer() {
+			@Override
+			public void render(int start, int end) {
+				for(int z = start; z < end; z++) {
+					for(int y = 0; y < depth; y++) {
+						for(int x = 0; x < width; x++) {
+							store.set(x, y, z, source.get(x, y, z));
+						}
+					}
+				}
+			}
+		});
+		
+		return store;
+	}
+	
+	@Override
+	public short get(int x, int y, int z) {
+		return decode[data[(z * depth + y) * width + x] & 0xff];
+	}
+	
+	@Override
+	public void set(int x, int y, int z, short val) {
+		data[(z * depth + y) * width + x] = encode[val - Short.MIN_VALUE];
+	}
+	
+	/*
+	 * Returns the level stored for each voxel, with voxel (x, y, z) at index (z * depth + y) * width + x
+	 */
+	public byte[] getData() {
+		return data;
+	}
+	/*
+	 * Returns the value a level stands for
+	 */
+	public short getLevelValue(int level) {
+		return decode[level];
+	}
+	
+	@Override
+	public int getWidth() {
+		return width;
+	}
+	@Override
+	public int getDepth() {
+		return depth;
+	}
+	@Override
+	public int getHeight() {
+		return height;
+	}
+}
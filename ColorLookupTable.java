@@ -0,0 +1,70 @@
+import java.awt.Color;
+
+/*
+ * Precomputed BGR bytes for every value between the min and max of a data set
+ * Gives the same colours as VolumeData.getRGB without creating a Color per pixel
+ */
+public class ColorLookupTable {
+	private final short min;
+	private final int lastIndex;
+	
+	// Three bytes (blue, green, red) per value, indexed by 3 * (val - min)
+	private final byte[] bgr;
+	// The same, but with the histogram equalization mapping applied first
+	private final byte[] equalizedBgr;
+	
+	public ColorLookupTable(short min, short max, Color color, short[] histogramMapping) {
+		this(min, max, color, histogramMapping, min, max);
+	}
+	
+	/*
+	 * Only spreads the colour over the window from windowLow to windowHigh, values at or below windowLow
+	 * being black and those at or above windowHigh the full colour
+	 */
+	public ColorLookupTable(short min, short max, Color color, short[] histogramMapping, short windowLow, short windowHigh) {
+		if(windowHigh < windowLow) {
+			throw new IllegalArgumentException("Window high " + windowHigh + " is below window low " + windowLow);
+		}
+		
+		this.min = min;
+		lastIndex = max - min;
+		
+		bgr = new byte[3 * (lastIndex + 1)];
+		for(int i = 0; i <= lastIndex; i++) {
+			// Matches the arithmetic in getRGB exactly when the window is the whole range, so images don't change
+			float fratio = ((float)(min + i) - (float)windowLow) / (windowHigh - windowLow);
+			fratio = Math.max(0, Math.min(1, fratio));
+			bgr[3 * i] = (byte) (int) (color.getBlue() * fratio);
+			bgr[3 * i + 1] = (byte) (int) (color.getGreen() * fratio);
+			bgr[3 * i + 2] = (byte) (int) (color.getRed() * fratio);
+		}
+		
+		equalizedBgr = new byte[bgr.length];
+		for(int i = 0; i <= lastIndex; i++) {
+			int mapped = clamp(histogramMapping[i] - min);
+			System.arraycopy(bgr, 3 * mapped, equalizedBgr, 3 * i, 3);
+		}
+	}
+	
+	/*
+	 * Writes the colour for val into dest[offset .. offset + 2] in BGR order
+	 */
+	public void write(short val, boolean equalize, byte[] dest, int offset) {
+		// Interpolation may give us values below the min or above the max, so they are clamped here
+		int index = 3 * clamp(val - min);
+		byte[] table = equalize ? equalizedBgr : bgr;
+		
+		dest[offset] = table[index];
+		dest[offset + 1] = table[index + 1];
+		dest[offset + 2] = table[index + 2];
+	}
+	
+	private int clamp(int index) {
+		if(index < 0) {
+			return 0;
+		} else if(index > lastIndex) {
+			return lastIndex;
+		}
+		return index;
+	}
+}
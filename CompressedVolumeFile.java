@@ -0,0 +1,441 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * A volume file of independently deflated chunks of planes, so the whole volume can be decoded in
+ * parallel or a single slab of it decoded on its own
+ * The header carries the dimensions, min, max and histogram, so opening a volume needs no scan of it
+ *
+ * File layout (all little endian):
+ *   int magic, int width, int depth, int height, int voxelType, short min, short max, int chunkPlanes, int chunkCount
+ *   long histogram[max - min + 1], the count of each value from min to max
+ *   chunkCount index entries of long offset, int compressedBytes
+ *   chunks, each chunkPlanes planes (fewer for the last) of shorts with x varying fastest, then y, then z
+ *
+ * Usage: java CompressedVolumeFile convert <raw volume> <width> <height> <depth> <out> [--chunk-planes n] [--level 0-9] [--header-offset bytes] [--threads n]
+ *        java CompressedVolumeFile bench <file> [--iterations n]
+ */
+public class CompressedVolumeFile implements Closeable {
+	public static final int DEFAULT_CHUNK_PLANES = 16;
+	// Files ending in this are opened as compressed volumes by Main and BatchRenderer
+	public static final String EXTENSION = ".vdc";
+	// Signed 16 bit voxels, the only type written so far
+	public static final int VOXEL_SHORT = 1;
+	
+	private static final int MAGIC = 0x43564456; // "VDVC"
+	private static final int HEADER_BYTES = 7 * 4 + 2 * 2;
+	private static final int INDEX_ENTRY_BYTES = 8 + 4;
+	
+	private final FileChannel channel;
+	
+	private final int width;
+	private final int depth;
+	private final int height;
+	private final int chunkPlanes;
+	private final VolumeStatistics statistics;
+	
+	private final long[] chunkOffsets;
+	private final int[] chunkBytes;
+	
+	public CompressedVolumeFile(String filename) throws IOException {
+		channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(header, 0);
+			header.flip();
+			
+			if(header.getInt() != MAGIC) {
+				throw new IOException(filename + " is not a compressed volume file");
+			}
+			width = header.getInt();
+			depth = header.getInt();
+			height = header.getInt();
+			int voxelType = header.getInt();
+			short min = header.getShort();
+			short max = header.getShort();
+			chunkPlanes = header.getInt();
+			int chunkCount = header.getInt();
+			
+			if(voxelType != VOXEL_SHORT) {
+				throw new IOException("Unsupported voxel type " + voxelType + " in " + filename);
+			}
+			ArrayVolumeStore.checkedSize(width, depth, height);
+			if(chunkPlanes < 1 || chunkCount != chunkCount(height, chunkPlanes) || max < min) {
+				throw new IOException(filename + " has a corrupt header");
+			}
+			
+			ByteBuffer tables = ByteBuffer.allocate(8 * (max - min + 1) + INDEX_ENTRY_BYTES * chunkCount).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(tables, HEADER_BYTES);
+			tables.flip();
+			
+			long[] histogram = new long[max - min + 1];
+			tables.asLongBuffer().get(histogram);
+			tables.position(8 * histogram.length);
+			statistics = VolumeStatistics.fromHistogram(min, max, histogram);
+			
+			chunkOffsets = new long[chunkCount];
+			chunkBytes = new int[chunkCount];
+			for(int c = 0; c < chunkCount; c++) {
+				chunkOffsets[c] = tables.getLong();
+				chunkBytes[c] = tables.getInt();
+			}
+		} catch(IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	private static int chunkCount(int height, int chunkPlanes) {
+		return (height + chunkPlanes - 1) / chunkPlanes;
+	}
+	
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if(read < 0) {
+				throw new EOFException("Compressed volume file ends early");
+			}
+			position += read;
+		}
+	}
+	
+	/*
+	 * Decodes every chunk into one array, splitting the chunks across the pool's threads
+	 */
+	public ArrayVolumeStore readVolume(RenderPool pool) throws IOException {
+		final ArrayVolumeStore store = new ArrayVolumeStore(width, depth, height);
+		final short[] data = store.getData();
+		
+		try {
+			pool.forEachBand(getChunkCount(), new RenderPool.BandRenderer() {
+				@Override
+				public void render(int start, int end) {
+					Inflater inflater = new Inflater();
+					try {
+						for(int c = start; c < end; c++) {
+							readChunk(c, inflater, data, c * chunkPlanes * depth * width);
+						}
+					} catch(IOException e) {
+						throw new IllegalStateException("Could not decode chunk", e);
+					} finally {
+						inflater.end();
+					}
+				}
+			});
+		} catch(IllegalStateException e) {
+			// The fork join pool may wrap the exception again when it was thrown on another thread
+			for(Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+				if(cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+			}
+			throw e;
+		}
+		return store;
+	}
+	
+	/*
+	 * Decodes only the given chunk, planes getChunkStart(chunk) up to getChunkEnd(chunk) of the volume
+	 */
+	public ArrayVolumeStore readSlab(int chunk) throws IOException {
+		if(chunk < 0 || chunk >= getChunkCount()) {
+			throw new IllegalArgumentException("Chunk " + chunk + " is outside 0 to " + (getChunkCount() - 1));
+		}
+		
+		ArrayVolumeStore slab = new ArrayVolumeStore(width, depth, getChunkEnd(chunk) - getChunkStart(chunk));
+		Inflater inflater = new Inflater();
+		try {
+			readChunk(chunk, inflater, slab.getData(), 0);
+		} finally {
+			inflater.end();
+		}
+		return slab;
+	}
+	
+	private void readChunk(int chunk, Inflater inflater, short[] dest, int offset) throws IOException {
+		ByteBuffer compressed = ByteBuffer.allocate(chunkBytes[chunk]);
+		readFully(compressed, chunkOffsets[chunk]);
+		
+		byte[] raw = new byte[2 * (getChunkEnd(chunk) - getChunkStart(chunk)) * depth * width];
+		inflater.reset();
+		inflater.setInput(compressed.array());
+		try {
+			int inflated = 0;
+			while(inflated < raw.length && !inflater.finished()) {
+				int n = inflater.inflate(raw, inflated, raw.length - inflated);
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += n;
+			}
+			if(inflated != raw.length) {
+				throw new EOFException("Chunk " + chunk + " decodes to " + inflated + " bytes but " + raw.length + " are needed");
+			}
+		} catch(DataFormatException e) {
+			throw new IOException("Chunk " + chunk + " is corrupt", e);
+		}
+		
+		ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(dest, offset, raw.length / 2);
+	}
+	
+	/*
+	 * Writes a volume out as a compressed file, deflating chunks on the pool's threads
+	 * level is a Deflater level, from 1 (fastest) to 9 (smallest), or Deflater.DEFAULT_COMPRESSION
+	 */
+	public static void write(final VolumeStore source, String filename, final int chunkPlanes, final int level, RenderPool pool) throws IOException {
+		if(chunkPlanes < 1) {
+			throw new IllegalArgumentException("Chunks must hold at least one plane: " + chunkPlanes);
+		}
+		if(level != Deflater.DEFAULT_COMPRESSION && (level < 0 || level > 9)) {
+			throw new IllegalArgumentException("Compression level must be between 0 and 9: " + level);
+		}
+		
+		VolumeStatistics statistics = VolumeStatistics.compute(source, pool);
+		long[] histogram = statistics.getHistogram();
+		final int chunkCount = chunkCount(source.getHeight(), chunkPlanes);
+		
+		try(FileChannel out = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + 8 * histogram.length).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(source.getWidth()).putInt(source.getDepth()).putInt(source.getHeight()).putInt(VOXEL_SHORT);
+			header.putShort(statistics.getMin()).putShort(statistics.getMax()).putInt(chunkPlanes).putInt(chunkCount);
+			for(long count : histogram) {
+				header.putLong(count);
+			}
+			header.flip();
+			writeFully(out, header, 0);
+			
+			long indexPosition = header.limit();
+			ByteBuffer index = ByteBuffer.allocate(INDEX_ENTRY_BYTES * chunkCount).order(ByteOrder.LITTLE_ENDIAN);
+			long position = indexPosition + index.capacity();
+			
+			// Only a few chunks per thread are held compressed at once, so the volume never has to fit twice over
+			int batchSize = 2 * pool.getThreads();
+			for(int first = 0; first < chunkCount; first += batchSize) {
+				final int batchStart = first;
+				final byte[][] chunks = new byte[Math.min(batchSize, chunkCount - first)][];
+				pool.forEachBand(chunks.length, new RenderPool.BandRenderer() {
+					@Override
+					public void render(int start, int end) {
+						Deflater deflater = new Deflater(level);
+						try {
+							for(int i = start; i < end; i++) {
+								chunks[i] = deflateChunk(source, (batchStart + i) * chunkPlanes, chunkPlanes, deflater);
+							}
+						} finally {
+							deflater.end();
+						}
+					}
+				});
+				
+				for(byte[] chunk : chunks) {
+					index.putLong(position).putInt(chunk.length);
+					writeFully(out, ByteBuffer.wrap(chunk), position);
+					position += chunk.length;
+				}
+			}
+			
+			index.flip();
+			writeFully(out, index, indexPosition);
+		}
+	}
+	
+	/*
+	 * Converts a raw volume file by mapping it, so volumes far larger than the heap can be converted
+	 */
+	public static void convertRaw(String rawFilename, int dataWidth, int dataDepth, int dataHeight, long headerOffset,
+			String filename, int chunkPlanes, int level, RenderPool pool) throws IOException {
+		write(MappedVolumeLoader.map(rawFilename, dataWidth, dataDepth, dataHeight, headerOffset), filename, chunkPlanes, level, pool);
+	}
+	
+	private static byte[] deflateChunk(VolumeStore source, int z0, int chunkPlanes, Deflater deflater) {
+		int width = source.getWidth();
+		int depth = source.getDepth();
+		int z1 = Math.min(z0 + chunkPlanes, source.getHeight());
+		
+		byte[] raw = new byte[2 * (z1 - z0) * depth * width];
+		ShortBuffer shorts = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+		if(source instanceof ArrayVolumeStore) {
+			shorts.put(((ArrayVolumeStore) source).getData(), z0 * depth * width, (z1 - z0) * depth * width);
+		} else {
+			for(int z = z0; z < z1; z++) {
+				for(int y = 0; y < depth; y++) {
+					for(int x = 0; x < width; x++) {
+						shorts.put(source.get(x, y, z));
+					}
+				}
+			}
+		}
+		
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2 + 64);
+		byte[] buffer = new byte[64 * 1024];
+		while(!deflater.finished()) {
+			compressed.write(buffer, 0, deflater.deflate(buffer));
+		}
+		return compressed.toByteArray();
+	}
+	
+	private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			position += out.write(buffer, position);
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	public int getDepth() {
+		return depth;
+	}
+	public int getHeight() {
+		return height;
+	}
+	/*
+	 * The min, max and histogram stored in the header, read without decoding any voxels
+	 */
+	public VolumeStatistics getStatistics() {
+		return statistics;
+	}
+	public int getChunkPlanes() {
+		return chunkPlanes;
+	}
+	public int getChunkCount() {
+		return chunkOffsets.length;
+	}
+	/*
+	 * Returns the chunk holding plane z
+	 */
+	public int getChunk(int z) {
+		return z / chunkPlanes;
+	}
+	public int getChunkStart(int chunk) {
+		return chunk * chunkPlanes;
+	}
+	public int getChunkEnd(int chunk) {
+		return Math.min(height, (chunk + 1) * chunkPlanes);
+	}
+	/*
+	 * Bytes taken by the compressed chunks, not counting the header and index
+	 */
+	public long getCompressedBytes() {
+		long total = 0;
+		for(int bytes : chunkBytes) {
+			total += bytes;
+		}
+		return total;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if(args.length >= 6 && args[0].equals("convert")) {
+			int chunkPlanes = DEFAULT_CHUNK_PLANES;
+			int level = Deflater.DEFAULT_COMPRESSION;
+			long headerOffset = 0;
+			int threads = Runtime.getRuntime().availableProcessors();
+			for(int i = 6; i < args.length; i++) {
+				String arg = args[i];
+				if(i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value for " + arg);
+				}
+				String value = args[++i];
+				
+				if(arg.equals("--chunk-planes")) {
+					chunkPlanes = Integer.parseInt(value);
+				} else if(arg.equals("--level")) {
+					level = Integer.parseInt(value);
+				} else if(arg.equals("--header-offset")) {
+					headerOffset = Long.parseLong(value);
+				} else if(arg.equals("--threads")) {
+					threads = Integer.parseInt(value);
+				} else {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+			
+			RenderPool pool = new RenderPool(threads);
+			try {
+				long startTime = System.nanoTime();
+				convertRaw(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[4]), Integer.parseInt(args[3]), headerOffset,
+						args[5], chunkPlanes, level, pool);
+				double seconds = (System.nanoTime() - startTime) / 1e9;
+				
+				try(CompressedVolumeFile file = new CompressedVolumeFile(args[5])) {
+					long rawBytes = 2L * file.getWidth() * file.getDepth() * file.getHeight();
+					System.out.println(String.format(Locale.ROOT, "Wrote %s: %d chunks, %d bytes from %d (%.1f%%) in %.2f s",
+							args[5], file.getChunkCount(), file.getCompressedBytes(), rawBytes, 100.0 * file.getCompressedBytes() / rawBytes, seconds));
+				}
+			} finally {
+				pool.shutdown();
+			}
+		} else if(args.length >= 2 && args[0].equals("bench")) {
+			int iterations = 5;
+			for(int i = 2; i < args.length; i++) {
+				String arg = args[i];
+				if(i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value for " + arg);
+				}
+				String value = args[++i];
+				
+				if(arg.equals("--iterations")) {
+					iterations = Integer.parseInt(value);
+				} else {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+			
+			try(CompressedVolumeFile file = new CompressedVolumeFile(args[1])) {
+				benchmark(file, iterations);
+			}
+		} else {
+			System.out.println("Usage: java CompressedVolumeFile convert <raw volume> <width> <height> <depth> <out> [--chunk-planes n] [--level 0-9] [--header-offset bytes] [--threads n]");
+			System.out.println("       java CompressedVolumeFile bench <file> [--iterations n]");
+		}
+	}
+	
+	/*
+	 * Prints the decode throughput of the whole file for 1, 2, 4... threads up to the number of processors,
+	 * taking the best of the iterations so the first read from disk doesn't count against it
+	 */
+	private static void benchmark(CompressedVolumeFile file, int iterations) throws IOException {
+		long rawBytes = 2L * file.getWidth() * file.getDepth() * file.getHeight();
+		int processors = Runtime.getRuntime().availableProcessors();
+		for(int threads = 1; ; threads = Math.min(2 * threads, processors)) {
+			RenderPool pool = new RenderPool(threads);
+			try {
+				long best = Long.MAX_VALUE;
+				for(int i = 0; i < iterations; i++) {
+					long startTime = System.nanoTime();
+					file.readVolume(pool);
+					best = Math.min(best, System.nanoTime() - startTime);
+				}
+				System.out.println(String.format(Locale.ROOT, "%3d threads: %8.2f ms, %8.1f MB/s decoded, %8.1f MB/s compressed",
+						threads, best / 1e6, rawBytes / (best / 1e9) / 1e6, file.getCompressedBytes() / (best / 1e9) / 1e6));
+			} finally {
+				pool.shutdown();
+			}
+			if(threads == processors) {
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,751 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Extracts the surface where a volume crosses an iso value as a triangle mesh, written as binary STL or PLY
+ *
+ * Each cube of eight voxels is split into six tetrahedra around its main diagonal and every tetrahedron the
+ * surface passes through gives one or two triangles. Neighbouring cubes split their shared faces along the
+ * same diagonal, so the mesh has no cracks, and no case tables are needed
+ *
+ * The volume is cut into slabs of cube layers that are extracted in parallel, each writing its triangles to
+ * its own temporary file. The slabs are then stitched into the output in order, so only the slabs being
+ * worked on are ever held in memory rather than the whole mesh
+ *
+ * Usage: java IsosurfaceExtractor <volume> <width> <height> <depth> <iso value> <out.stl|out.ply> [--threads n] [--header-offset bytes]
+ */
+public class IsosurfaceExtractor {
+	public enum Format {
+		STL, PLY;
+		
+		/*
+		 * Picks the format from the file's extension
+		 */
+		public static Format forFile(File file) {
+			String name = file.getName().toLowerCase(Locale.ROOT);
+			if(name.endsWith(".stl")) {
+				return STL;
+			} else if(name.endsWith(".ply")) {
+				return PLY;
+			}
+			throw new IllegalArgumentException("Mesh files must end in .stl or .ply: " + file);
+		}
+	}
+	
+	// Cube layers in each slab, few enough that a slab's part of the mesh is small
+	private static final int SLAB_LAYERS = 8;
+	// The six tetrahedra of a cube, as corners numbered by bit 0 = +x, bit 1 = +y and bit 2 = +z
+	// Every tetrahedron runs from corner 0 to corner 7, so each edge goes from a corner to one with more bits set
+	private static final int[][] TETRAHEDRA = {
+		{0, 1, 3, 7}, {0, 1, 5, 7}, {0, 2, 3, 7}, {0, 2, 6, 7}, {0, 4, 5, 7}, {0, 4, 6, 7}
+	};
+	// Edges run along one of seven directions (the set bits of the far corner), so these number every edge
+	private static final int EDGE_DIRECTIONS = 7;
+	private static final int BUFFER_BYTES = 1 << 16;
+	private static final int STL_HEADER_BYTES = 80;
+	
+	private final VolumeStore store;
+	private final float isoValue;
+	private final RenderPool pool;
+	private final int width;
+	private final int depth;
+	private final int height;
+	
+	public IsosurfaceExtractor(VolumeStore store, short isoValue, RenderPool pool) {
+		this.store = store;
+		this.isoValue = isoValue;
+		this.pool = pool;
+		width = store.getWidth();
+		depth = store.getDepth();
+		height = store.getHeight();
+	}
+	
+	/*
+	 * What an extraction produced and how long it took
+	 */
+	public static final class Result {
+		private final long triangles;
+		private final long vertices;
+		private final long nanos;
+		private final long peakMemory;
+		
+		private Result(long triangles, long vertices, long nanos, long peakMemory) {
+			this.triangles = triangles;
+			this.vertices = vertices;
+			this.nanos = nanos;
+			this.peakMemory = peakMemory;
+		}
+		
+		public long getTriangles() {
+			return triangles;
+		}
+		/*
+		 * Distinct vertices, which STL files repeat for every triangle that uses them
+		 */
+		public long getVertices() {
+			return vertices;
+		}
+		public long getNanos() {
+			return nanos;
+		}
+		public double getTrianglesPerSecond() {
+			return nanos == 0 ? 0 : triangles / (nanos / 1e9);
+		}
+		/*
+		 * Most bytes the extraction's own buffers held at once: the planes being read, the edge maps and
+		 * vertex arrays of the slabs in progress, the keys kept for stitching, and the file buffers
+		 * The volume, the JVM's own overhead and garbage not yet collected are not counted
+		 */
+		public long getPeakMemory() {
+			return peakMemory;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%d triangles, %d vertices in %.1f ms (%.0f triangles per second), peak buffers %.1f MB",
+					triangles, vertices, nanos / 1e6, getTrianglesPerSecond(), peakMemory / (1024.0 * 1024.0));
+		}
+	}
+	
+	/*
+	 * Extracts the surface into output, in the format its extension names
+	 */
+	public Result extract(File output) throws IOException {
+		final Format format = Format.forFile(output);
+		final Footprint footprint = new Footprint();
+		long startTime = System.nanoTime();
+		
+		final int layers = Math.max(0, height - 1);
+		final Slab[] slabs = new Slab[(layers + SLAB_LAYERS - 1) / SLAB_LAYERS];
+		try {
+			try {
+				// Each band of slabs is extracted on one thread, with a slab's temporary files written as it finishes
+				pool.forEachBand(slabs.length, new RenderPool.BandRenderer() {
+					@Override
+					public void render(int start, int end) {
+						for(int s = start; s < end; s++) {
+							Slab slab = new Slab(s * SLAB_LAYERS, Math.min((s + 1) * SLAB_LAYERS, layers), s == slabs.length - 1, format, footprint);
+							slabs[s] = slab;
+							try {
+								slab.extract();
+							} catch(IOException e) {
+								throw new IllegalStateException("Could not write slab " + s, e);
+							}
+						}
+					}
+				});
+			} catch(IllegalStateException e) {
+				// The fork join pool may wrap the exception again when it was thrown on another thread
+				for(Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+					if(cause instanceof IOException) {
+						throw (IOException) cause;
+					}
+				}
+				throw e;
+			}
+			
+			long triangles = 0;
+			long vertices = 0;
+			for(Slab slab : slabs) {
+				triangles += slab.triangles;
+				vertices += slab.ownedVertices;
+			}
+			
+			if(format == Format.STL) {
+				writeStl(output, slabs, triangles, footprint);
+			} else {
+				writePly(output, slabs, triangles, vertices, footprint);
+			}
+			return new Result(triangles, vertices, System.nanoTime() - startTime, footprint.peak.get());
+		} finally {
+			for(Slab slab : slabs) {
+				if(slab != null) {
+					slab.deleteFiles();
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Bytes held by one extraction's buffers, and the most held at once
+	 * Buffers are counted from when they are allocated to when they are dropped, so a table being grown counts
+	 * both its old and new arrays while it is copied
+	 */
+	private static final class Footprint {
+		final AtomicLong current = new AtomicLong();
+		final AtomicLong peak = new AtomicLong();
+		
+		void add(long bytes) {
+			long now = current.addAndGet(bytes);
+			long highest = peak.get();
+			while(now > highest && !peak.compareAndSet(highest, now)) {
+				highest = peak.get();
+			}
+		}
+	}
+	
+	/*
+	 * Writes the header and then every slab's triangles, which are already in STL's layout
+	 */
+	private void writeStl(File output, Slab[] slabs, long triangles, Footprint footprint) throws IOException {
+		if(triangles > 0xffffffffL) {
+			throw new IOException("STL files hold at most 2^32 - 1 triangles, the surface has " + triangles);
+		}
+		
+		try(Output out = new Output(output, footprint)) {
+			byte[] header = Arrays.copyOf(("Isosurface at " + isoValue).getBytes(StandardCharsets.US_ASCII), STL_HEADER_BYTES);
+			out.putBytes(header);
+			out.putInt((int) triangles);
+			for(Slab slab : slabs) {
+				out.copy(slab.triangleFile);
+			}
+		}
+	}
+	
+	/*
+	 * Writes the header, every slab's vertices and then every slab's faces
+	 * Faces that use vertices on the plane a slab shares with the next one are pointed at the next slab's copy
+	 */
+	private void writePly(File output, Slab[] slabs, long triangles, long vertices, Footprint footprint) throws IOException {
+		if(vertices > Integer.MAX_VALUE) {
+			throw new IOException("Too many vertices for 32-bit PLY face indices: " + vertices);
+		}
+		
+		int[] firstVertex = new int[slabs.length + 1];
+		for(int s = 0; s < slabs.length; s++) {
+			firstVertex[s + 1] = firstVertex[s] + slabs[s].ownedVertices;
+		}
+		
+		footprint.add(4L * firstVertex.length + BUFFER_BYTES);
+		try(Output out = new Output(output, footprint)) {
+			String header = "ply\n"
+					+ "format binary_little_endian 1.0\n"
+					+ "comment isosurface at " + isoValue + "\n"
+					+ "element vertex " + vertices + "\n"
+					+ "property float x\n"
+					+ "property float y\n"
+					+ "property float z\n"
+					+ "element face " + triangles + "\n"
+					+ "property list uchar int vertex_indices\n"
+					+ "end_header\n";
+			out.putBytes(header.getBytes(StandardCharsets.US_ASCII));
+			
+			for(Slab slab : slabs) {
+				out.copy(slab.vertexFile);
+			}
+			
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			for(int s = 0; s < slabs.length; s++) {
+				Slab slab = slabs[s];
+				try(FileChannel channel = FileChannel.open(slab.triangleFile.toPath(), StandardOpenOption.READ)) {
+					buffer.clear();
+					while(true) {
+						int read = channel.read(buffer);
+						buffer.flip();
+						while(buffer.remaining() >= 12) {
+							out.putByte((byte) 3);
+							for(int i = 0; i < 3; i++) {
+								int index = buffer.getInt();
+								if(index >= 0) {
+									out.putInt(firstVertex[s] + index);
+								} else {
+									// Only the last slab has no next slab, and it owns every vertex it uses
+									long key = slab.sharedKeys[-index - 1];
+									out.putInt(firstVertex[s + 1] + slabs[s + 1].firstPlane.get(key));
+								}
+							}
+						}
+						buffer.compact();
+						if(read < 0) {
+							break;
+						}
+					}
+				}
+			}
+		} finally {
+			footprint.add(-(4L * firstVertex.length + BUFFER_BYTES));
+		}
+	}
+	
+	/*
+	 * The surface through a run of cube layers, from layer start (inclusive) to end (exclusive)
+	 * A slab owns the vertices on the edges starting in its layers, apart from those on the plane at end,
+	 * which belong to the next slab unless this is the last one
+	 */
+	private final class Slab {
+		private final int start;
+		private final int end;
+		private final boolean last;
+		private final Format format;
+		private final Footprint footprint;
+		
+		// Where each edge's vertex is in this slab, found by edge key
+		private final EdgeMap slots;
+		private float[] positions = new float[3 * 1024];
+		private int[] plyIndices = new int[1024];
+		private int slotCount;
+		
+		// The number of each vertex this slab owns on its first plane, which the slab before it points to
+		private final EdgeMap firstPlane;
+		// Keys of the vertices on the plane at end that belong to the next slab, PLY faces refer to them as -(i + 1)
+		private long[] sharedKeys = new long[256];
+		private int sharedCount;
+		
+		private int ownedVertices;
+		private long triangles;
+		
+		// Corners of the tetrahedron being split, grouped by side of the surface
+		private final int[] others = new int[3];
+		private final int[] in = new int[2];
+		private final int[] out = new int[2];
+		
+		private File vertexFile;
+		private File triangleFile;
+		private Output vertexOut;
+		private Output triangleOut;
+		
+		Slab(int start, int end, boolean last, Format format, Footprint footprint) {
+			this.start = start;
+			this.end = end;
+			this.last = last;
+			this.format = format;
+			this.footprint = footprint;
+			slots = new EdgeMap(footprint);
+			firstPlane = new EdgeMap(footprint);
+			footprint.add(4L * positions.length + 4L * plyIndices.length + 8L * sharedKeys.length);
+		}
+		
+		void extract() throws IOException {
+			triangleFile = File.createTempFile("isosurface", ".part");
+			triangleOut = new Output(triangleFile, footprint);
+			if(format == Format.PLY) {
+				vertexFile = File.createTempFile("isosurface", ".part");
+				vertexOut = new Output(vertexFile, footprint);
+			}
+			
+			long planeBytes = 2 * 2L * width * depth;
+			footprint.add(planeBytes);
+			try {
+				short[] lower = new short[width * depth];
+				short[] upper = new short[width * depth];
+				readPlane(start, lower);
+				
+				float[] values = new float[8];
+				for(int z = start; z < end; z++) {
+					readPlane(z + 1, upper);
+					for(int y = 0; y < depth - 1; y++) {
+						for(int x = 0; x < width - 1; x++) {
+							int i = y * width + x;
+							values[0] = lower[i];
+							values[1] = lower[i + 1];
+							values[2] = lower[i + width];
+							values[3] = lower[i + width + 1];
+							values[4] = upper[i];
+							values[5] = upper[i + 1];
+							values[6] = upper[i + width];
+							values[7] = upper[i + width + 1];
+							
+							int inside = 0;
+							for(int c = 0; c < 8; c++) {
+								if(values[c] >= isoValue) {
+									inside |= 1 << c;
+								}
+							}
+							// The surface only passes through cubes with corners on both sides of it
+							if(inside != 0 && inside != 0xff) {
+								polygoniseCube(x, y, z, values, inside);
+							}
+						}
+					}
+					
+					short[] swap = lower;
+					lower = upper;
+					upper = swap;
+				}
+			} finally {
+				footprint.add(-planeBytes);
+				triangleOut.close();
+				if(vertexOut != null) {
+					vertexOut.close();
+				}
+			}
+			
+			// Only the keys the slab before needs are kept for stitching
+			slots.clear();
+			footprint.add(-(4L * positions.length + 4L * plyIndices.length));
+			positions = null;
+			plyIndices = null;
+		}
+		
+		private void readPlane(int z, short[] plane) {
+			if(store instanceof ArrayVolumeStore) {
+				System.arraycopy(((ArrayVolumeStore) store).getData(), z * width * depth, plane, 0, plane.length);
+			} else {
+				for(int y = 0, i = 0; y < depth; y++) {
+					for(int x = 0; x < width; x++, i++) {
+						plane[i] = store.get(x, y, z);
+					}
+				}
+			}
+		}
+		
+		private void polygoniseCube(int x, int y, int z, float[] values, int inside) throws IOException {
+			for(int[] tetrahedron : TETRAHEDRA) {
+				int count = 0;
+				for(int corner : tetrahedron) {
+					if((inside & (1 << corner)) != 0) {
+						count++;
+					}
+				}
+				if(count == 0 || count == 4) {
+					continue;
+				}
+				
+				if(count == 1 || count == 3) {
+					// One corner is on its own side, so the surface cuts off that corner with one triangle
+					boolean alone = count == 1;
+					int lone = 0;
+					while(((inside & (1 << tetrahedron[lone])) != 0) != alone) {
+						lone++;
+					}
+					for(int i = 0, o = 0; i < 4; i++) {
+						if(i != lone) {
+							others[o++] = tetrahedron[i];
+						}
+					}
+					int a = vertex(x, y, z, tetrahedron[lone], others[0], values);
+					int b = vertex(x, y, z, tetrahedron[lone], others[1], values);
+					int c = vertex(x, y, z, tetrahedron[lone], others[2], values);
+					// The triangle winds the same way round the lone corner as the other three corners do
+					int winding = orientation(tetrahedron[lone], others[0], others[1], others[2]);
+					triangle(a, b, c, alone ? winding < 0 : winding > 0);
+				} else {
+					// Two corners on each side, so the surface crosses four edges as a quad
+					for(int i = 0, n = 0, m = 0; i < 4; i++) {
+						if((inside & (1 << tetrahedron[i])) != 0) {
+							in[n++] = tetrahedron[i];
+						} else {
+							out[m++] = tetrahedron[i];
+						}
+					}
+					int ac = vertex(x, y, z, in[0], out[0], values);
+					int ad = vertex(x, y, z, in[0], out[1], values);
+					int bd = vertex(x, y, z, in[1], out[1], values);
+					int bc = vertex(x, y, z, in[1], out[0], values);
+					boolean flip = orientation(in[0], in[1], out[0], out[1]) < 0;
+					triangle(ac, ad, bd, flip);
+					triangle(ac, bd, bc, flip);
+				}
+			}
+		}
+		
+		/*
+		 * Returns the slot of the vertex where the surface crosses the edge between two corners of cube (x, y, z),
+		 * adding it the first time the edge is crossed
+		 */
+		private int vertex(int x, int y, int z, int cornerA, int cornerB, float[] values) throws IOException {
+			// Key the edge from the corner with fewer bits, so every cube sharing it finds the same key
+			int from = cornerA & cornerB;
+			int to = cornerA | cornerB;
+			int fromX = x + (from & 1);
+			int fromY = y + ((from >> 1) & 1);
+			int fromZ = z + ((from >> 2) & 1);
+			long key = ((long) (fromZ * depth + fromY) * width + fromX) * EDGE_DIRECTIONS + ((to ^ from) - 1);
+			
+			int slot = slots.get(key);
+			if(slot != EdgeMap.ABSENT) {
+				return slot;
+			}
+			
+			float ratio = (isoValue - values[from]) / (values[to] - values[from]);
+			float vx = fromX + ratio * ((to ^ from) & 1);
+			float vy = fromY + ratio * (((to ^ from) >> 1) & 1);
+			float vz = fromZ + ratio * (((to ^ from) >> 2) & 1);
+			
+			slot = slotCount++;
+			if(slot == plyIndices.length) {
+				footprint.add(8L * slot + 24L * slot);
+				plyIndices = Arrays.copyOf(plyIndices, 2 * slot);
+				positions = Arrays.copyOf(positions, 6 * slot);
+				footprint.add(-(4L * slot + 12L * slot));
+			}
+			positions[3 * slot] = vx;
+			positions[3 * slot + 1] = vy;
+			positions[3 * slot + 2] = vz;
+			slots.put(key, slot);
+			
+			if(format == Format.PLY) {
+				if(fromZ == end && !last) {
+					// On the plane shared with the next slab, which writes it instead
+					if(sharedCount == sharedKeys.length) {
+						footprint.add(16L * sharedCount);
+						sharedKeys = Arrays.copyOf(sharedKeys, 2 * sharedCount);
+						footprint.add(-8L * sharedCount);
+					}
+					sharedKeys[sharedCount] = key;
+					plyIndices[slot] = -(++sharedCount);
+				} else {
+					if(fromZ == start) {
+						firstPlane.put(key, ownedVertices);
+					}
+					plyIndices[slot] = ownedVertices++;
+					vertexOut.putFloat(vx);
+					vertexOut.putFloat(vy);
+					vertexOut.putFloat(vz);
+				}
+			} else {
+				ownedVertices += fromZ == end && !last ? 0 : 1;
+			}
+			return slot;
+		}
+		
+		/*
+		 * Writes a triangle, with its winding reversed if flip is set
+		 * Triangles are wound so that they face away from the inside of the surface, which is worked out from the
+		 * corners of the tetrahedron rather than the triangle itself, so triangles squashed flat where the surface
+		 * passes through a corner still wind the same way as their neighbours
+		 */
+		private void triangle(int a, int b, int c, boolean flip) throws IOException {
+			if(flip) {
+				int swap = b;
+				b = c;
+				c = swap;
+			}
+			triangles++;
+			
+			if(format == Format.PLY) {
+				triangleOut.putInt(plyIndices[a]);
+				triangleOut.putInt(plyIndices[b]);
+				triangleOut.putInt(plyIndices[c]);
+			} else {
+				float ax = positions[3 * a], ay = positions[3 * a + 1], az = positions[3 * a + 2];
+				float ux = positions[3 * b] - ax, uy = positions[3 * b + 1] - ay, uz = positions[3 * b + 2] - az;
+				float vx = positions[3 * c] - ax, vy = positions[3 * c + 1] - ay, vz = positions[3 * c + 2] - az;
+				float nx = uy * vz - uz * vy;
+				float ny = uz * vx - ux * vz;
+				float nz = ux * vy - uy * vx;
+				// Flat triangles are given no normal
+				float length = Math.max(Float.MIN_NORMAL, (float) Math.sqrt(nx * nx + ny * ny + nz * nz));
+				triangleOut.putFloat(nx / length);
+				triangleOut.putFloat(ny / length);
+				triangleOut.putFloat(nz / length);
+				putPosition(a);
+				putPosition(b);
+				putPosition(c);
+				triangleOut.putShort((short) 0);
+			}
+		}
+		
+		/*
+		 * Sign of the volume of the tetrahedron between four corners of a cube, positive if q, r and s wind
+		 * anticlockwise seen from p
+		 */
+		private int orientation(int p, int q, int r, int s) {
+			int ux = (q & 1) - (p & 1), uy = ((q >> 1) & 1) - ((p >> 1) & 1), uz = ((q >> 2) & 1) - ((p >> 2) & 1);
+			int vx = (r & 1) - (p & 1), vy = ((r >> 1) & 1) - ((p >> 1) & 1), vz = ((r >> 2) & 1) - ((p >> 2) & 1);
+			int wx = (s & 1) - (p & 1), wy = ((s >> 1) & 1) - ((p >> 1) & 1), wz = ((s >> 2) & 1) - ((p >> 2) & 1);
+			return Integer.signum(ux * (vy * wz - vz * wy) - uy * (vx * wz - vz * wx) + uz * (vx * wy - vy * wx));
+		}
+		
+		private void putPosition(int slot) throws IOException {
+			triangleOut.putFloat(positions[3 * slot]);
+			triangleOut.putFloat(positions[3 * slot + 1]);
+			triangleOut.putFloat(positions[3 * slot + 2]);
+		}
+		
+		void deleteFiles() {
+			if(triangleFile != null) {
+				triangleFile.delete();
+			}
+			if(vertexFile != null) {
+				vertexFile.delete();
+			}
+		}
+	}
+	
+	/*
+	 * Maps edge keys to ints by open addressing, so no key or value is ever boxed
+	 * Keys must not be negative
+	 */
+	private static final class EdgeMap {
+		static final int ABSENT = Integer.MIN_VALUE;
+		private static final long EMPTY = -1;
+		// A long key and an int value per slot
+		private static final int SLOT_BYTES = 12;
+		
+		private final Footprint footprint;
+		private long[] keys;
+		private int[] values;
+		private int size;
+		
+		EdgeMap(Footprint footprint) {
+			this.footprint = footprint;
+			allocate(1 << 10);
+		}
+		
+		private void allocate(int capacity) {
+			footprint.add((long) SLOT_BYTES * capacity);
+			keys = new long[capacity];
+			values = new int[capacity];
+			Arrays.fill(keys, EMPTY);
+			size = 0;
+		}
+		
+		private int slot(long key) {
+			// Fibonacci hashing spreads the keys of neighbouring edges, which differ in their low bits, over the table
+			int mask = keys.length - 1;
+			int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+			while(keys[slot] != EMPTY && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+		
+		int get(long key) {
+			int slot = slot(key);
+			return keys[slot] == key ? values[slot] : ABSENT;
+		}
+		
+		void put(long key, int value) {
+			int slot = slot(key);
+			if(keys[slot] != key) {
+				keys[slot] = key;
+				size++;
+			}
+			values[slot] = value;
+			
+			// Keep the table at most half full so probes stay short
+			if(2 * size > keys.length) {
+				long[] oldKeys = keys;
+				int[] oldValues = values;
+				allocate(2 * oldKeys.length);
+				for(int i = 0; i < oldKeys.length; i++) {
+					if(oldKeys[i] != EMPTY) {
+						put(oldKeys[i], oldValues[i]);
+					}
+				}
+				footprint.add(-(long) SLOT_BYTES * oldKeys.length);
+			}
+		}
+		
+		void clear() {
+			long oldBytes = (long) SLOT_BYTES * keys.length;
+			allocate(1 << 10);
+			footprint.add(-oldBytes);
+		}
+	}
+	
+	/*
+	 * Buffered little endian writes to a file
+	 */
+	private static final class Output implements AutoCloseable {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		private final Footprint footprint;
+		
+		Output(File file, Footprint footprint) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			this.footprint = footprint;
+			footprint.add(BUFFER_BYTES);
+		}
+		
+		void putByte(byte b) throws IOException {
+			ensure(1);
+			buffer.put(b);
+		}
+		void putShort(short s) throws IOException {
+			ensure(2);
+			buffer.putShort(s);
+		}
+		void putInt(int i) throws IOException {
+			ensure(4);
+			buffer.putInt(i);
+		}
+		void putFloat(float f) throws IOException {
+			ensure(4);
+			buffer.putFloat(f);
+		}
+		void putBytes(byte[] bytes) throws IOException {
+			flush();
+			channel.write(ByteBuffer.wrap(bytes));
+		}
+		
+		/*
+		 * Appends the whole of another file
+		 */
+		void copy(File file) throws IOException {
+			flush();
+			try(FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				long position = 0;
+				long size = in.size();
+				while(position < size) {
+					position += in.transferTo(position, size - position, channel);
+				}
+			}
+		}
+		
+		private void ensure(int bytes) throws IOException {
+			if(buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+		
+		private void flush() throws IOException {
+			buffer.flip();
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				channel.close();
+				footprint.add(-BUFFER_BYTES);
+			}
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if(args.length < 6) {
+			System.out.println("Usage: java IsosurfaceExtractor <volume> <width> <height> <depth> <iso value> <out.stl|out.ply> [--threads n] [--header-offset bytes]");
+			return;
+		}
+		
+		int threads = Runtime.getRuntime().availableProcessors();
+		long headerOffset = 0;
+		for(int i = 6; i < args.length; i++) {
+			String arg = args[i];
+			if(i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + arg);
+			}
+			String value = args[++i];
+			
+			if(arg.equals("--threads")) {
+				threads = Integer.parseInt(value);
+			} else if(arg.equals("--header-offset")) {
+				headerOffset = Long.parseLong(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+		
+		VolumeData vd = new VolumeData(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), headerOffset);
+		vd.setRenderThreads(threads);
+		
+		File output = new File(args[5]);
+		IsosurfaceExtractor.Result result = vd.extractIsosurface(Short.parseShort(args[4]), output);
+		System.out.println("Wrote " + output + ": " + result);
+	}
+}
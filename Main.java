@@ -7,22 +7,34 @@ import java.io.IOException;
  */
 
 public class Main {
-
+	// Raw volumes are read in the background while the first images are drawn, -DstreamVolume=false maps them in before showing anything
+	private static final boolean STREAM_VOLUME = Boolean.parseBoolean(System.getProperty("streamVolume", "true"));
+	
 	/**
 	 * @param args
 	 * @throws InterruptedException 
 	 */
 	public static void main(String[] args) throws InterruptedException {
 		VolumeData vd;
+		String filename = args.length > 0 ? args[0] : "CThead";
 		
 		try {
-			vd = new VolumeData("CThead");
+			if(filename.endsWith(CompressedVolumeFile.EXTENSION)) {
+				try(CompressedVolumeFile file = new CompressedVolumeFile(filename)) {
+					vd = new VolumeData(file);
+				}
+			} else if(STREAM_VOLUME) {
+				new UserInterface(new StreamingVolumeLoader(filename));
+				return;
+			} else {
+				vd = new VolumeData(filename);
+			}
 		} catch (IOException e) {
-			System.out.println("File CThead was not found");
+			System.out.println("File " + filename + " could not be read: " + e.getMessage());
 			return;
 		}
 		
 		new UserInterface(vd);
 	}
-
+	
 }
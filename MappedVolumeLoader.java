@@ -0,0 +1,56 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Opens raw volume files of little endian 16 bit voxels by memory mapping them
+ * Voxels are decoded straight out of the page cache when they are read, so nothing is copied on load
+ * A mapping holds at most 2GB, so larger volumes are mapped as several runs of z planes
+ */
+public final class MappedVolumeLoader {
+	private MappedVolumeLoader() {
+	}
+	
+	public static VolumeStore map(String filename, int dataWidth, int dataDepth, int dataHeight) throws IOException {
+		return map(filename, dataWidth, dataDepth, dataHeight, 0);
+	}
+	
+	/*
+	 * Maps a volume that starts headerOffset bytes into the file, skipping any preamble before it
+	 * The returned store is read only, as the mapping is shared with the file
+	 */
+	public static VolumeStore map(String filename, int dataWidth, int dataDepth, int dataHeight, long headerOffset) throws IOException {
+		if(headerOffset < 0) {
+			throw new IllegalArgumentException("Header offset cannot be negative: " + headerOffset);
+		}
+		
+		long size = 2L * ArrayVolumeStore.checkedSize(dataWidth, dataDepth, dataHeight);
+		
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			if(channel.size() < headerOffset + size) {
+				throw new EOFException("File " + filename + " holds " + channel.size() + " bytes but " + (headerOffset + size) + " are needed");
+			}
+			
+			// The mappings stay valid after the channel has been closed
+			if(size <= Integer.MAX_VALUE) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, headerOffset, size);
+				return new BufferVolumeStore(dataWidth, dataDepth, dataHeight, buffer.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer());
+			}
+			
+			int runPlanes = BufferVolumeStore.runPlanes(dataWidth, dataDepth);
+			long planeBytes = 2L * dataWidth * dataDepth;
+			ShortBuffer[] runs = new ShortBuffer[(dataHeight + runPlanes - 1) / runPlanes];
+			for(int i = 0; i < runs.length; i++) {
+				int planes = Math.min(runPlanes, dataHeight - i * runPlanes);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, headerOffset + i * runPlanes * planeBytes, planes * planeBytes);
+				runs[i] = buffer.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+			}
+			return new BufferVolumeStore(dataWidth, dataDepth, dataHeight, runPlanes, runs);
+		}
+	}
+}
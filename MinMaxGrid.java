@@ -0,0 +1,256 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * Splits a volume into blocks and records the smallest and largest value each block can produce
+ * when it is sampled, so ray casters can skip over blocks that cannot change their result
+ * 
+ * Each block's range also covers the voxels one step past its edges, as trilinear sampling
+ * anywhere inside the block reads those neighbours too
+ */
+public class MinMaxGrid {
+	public static final int DEFAULT_BLOCK_SIZE = 8;
+	
+	// Recomputed sample positions can drift very slightly from the exact ray, so leave a margin at block edges
+	private static final float EDGE_MARGIN = 0.01f;
+	
+	private final int width;
+	private final int depth;
+	private final int height;
+	
+	private final int blockShift;
+	private final int blocksX;
+	private final int blocksY;
+	private final int blocksZ;
+	
+	private final short[] blockMin;
+	// Highest value any sample inside the block can take, see build for why this can exceed the real max
+	private final short[] blockMaxBound;
+	private final short maxBound;
+	
+	private final long buildTimeNanos;
+	
+	public MinMaxGrid(VolumeStore store, RenderPool pool) {
+		this(store, DEFAULT_BLOCK_SIZE, pool);
+	}
+	
+	public MinMaxGrid(final VolumeStore store, int blockSize, RenderPool pool) {
+		if(Integer.bitCount(blockSize) != 1) {
+			throw new IllegalArgumentException("Block size must be a power of two: " + blockSize);
+		}
+		long startTime = System.nanoTime();
+		
+		width = store.getWidth();
+		depth = store.getDepth();
+		height = store.getHeight();
+		
+		blockShift = Integer.numberOfTrailingZeros(blockSize);
+		blocksX = (width + blockSize - 1) >> blockShift;
+		blocksY = (depth + blockSize - 1) >> blockShift;
+		blocksZ = (height + blockSize - 1) >> blockShift;
+		
+		blockMin = new short[blocksX * blocksY * blocksZ];
+		blockMaxBound = new short[blockMin.length];
+		
+		if(store instanceof BrickedVolumeStore) {
+			buildFromBricks((BrickedVolumeStore) store, pool);
+		} else {
+			pool.forEachBand(blocksZ, new RenderPool.BandRenderer() {
+				@Override
+				public void render(int start, int end) {
+					for(int bz = start; bz < end; bz++) {
+						for(int by = 0; by < blocksY; by++) {
+							for(int bx = 0; bx < blocksX; bx++) {
+								build(store, bx, by, bz);
+							}
+						}
+					}
+				}
+			});
+		}
+		
+		short highest = Short.MIN_VALUE;
+		for(short bound : blockMaxBound) {
+			if(bound > highest) {
+				highest = bound;
+			}
+		}
+		maxBound = highest;
+		
+		buildTimeNanos = System.nanoTime() - startTime;
+	}
+	
+	private void build(VolumeStore store, int bx, int by, int bz) {
+		// Extend the block by one voxel each way to cover the neighbours interpolation reads
+		int x0 = Math.max(0, (bx << blockShift) - 1);
+		int y0 = Math.max(0, (by << blockShift) - 1);
+		int z0 = Math.max(0, (bz << blockShift) - 1);
+		int x1 = Math.min(width - 1, (bx + 1) << blockShift);
+		int y1 = Math.min(depth - 1, (by + 1) << blockShift);
+		int z1 = Math.min(height - 1, (bz + 1) << blockShift);
+		
+		short blockLow = Short.MAX_VALUE;
+		short blockHigh = Short.MIN_VALUE;
+		for(int z = z0; z <= z1; z++) {
+			for(int y = y0; y <= y1; y++) {
+				for(int x = x0; x <= x1; x++) {
+					short val = store.get(x, y, z);
+					if(val < blockLow) {
+						blockLow = val;
+					}
+					if(val > blockHigh) {
+						blockHigh = val;
+					}
+				}
+			}
+		}
+		
+		int index = (bz * blocksY + by) * blocksX + bx;
+		blockMin[index] = blockLow;
+		// Casting an interpolated float to short rounds towards zero, so a negative max can come out one higher
+		blockMaxBound[index] = blockHigh < 0 ? (short) (blockHigh + 1) : blockHigh;
+	}
+	
+	/*
+	 * Builds the same grid as build from a bricked volume's file one brick at a time, so none of it goes through
+	 * the brick cache. Each voxel counts towards its own block, and also towards the neighbouring blocks whose
+	 * edges it lies one step past
+	 * Brick layers are read in slabs at least a block thick, and a slab only touches the blocks of the slabs
+	 * either side of it, so slabs three apart are read at the same time and no two threads update the same block
+	 */
+	private void buildFromBricks(final BrickedVolumeStore store, RenderPool pool) {
+		Arrays.fill(blockMin, Short.MAX_VALUE);
+		final short[] blockMax = new short[blockMin.length];
+		Arrays.fill(blockMax, Short.MIN_VALUE);
+		final int brickSize = store.getBrickSize();
+		final int blockMask = (1 << blockShift) - 1;
+		// Both sizes are powers of two, so slabs line up with the block layers
+		final int slabLayers = Math.max(1, (1 << blockShift) / brickSize);
+		final int slabs = (store.getBricksZ() + slabLayers - 1) / slabLayers;
+		
+		for(int phase = 0; phase < 3; phase++) {
+			final int first = phase;
+			pool.forEachBand((slabs - first + 2) / 3, new RenderPool.BandRenderer() {
+				@Override
+				public void render(int start, int end) {
+					try {
+						for(int slab = first + 3 * start; slab < first + 3 * end; slab += 3) {
+							int layer = slab * slabLayers;
+							store.readBricks(layer, Math.min(store.getBricksZ(), layer + slabLayers), new BrickedVolumeStore.BrickVisitor() {
+								@Override
+								public void visit(int bx, int by, int bz, short[] data) {
+									int x0 = bx * brickSize;
+									int y0 = by * brickSize;
+									int z0 = bz * brickSize;
+									// Padding past the far edges isn't part of the volume
+									int xs = Math.min(brickSize, width - x0);
+									int ys = Math.min(brickSize, depth - y0);
+									int zs = Math.min(brickSize, height - z0);
+									for(int z = 0; z < zs; z++) {
+										int blockZ = (z0 + z) >> blockShift;
+										int zLow = ((z0 + z) & blockMask) == 0 ? Math.max(0, blockZ - 1) : blockZ;
+										int zHigh = ((z0 + z) & blockMask) == blockMask ? Math.min(blocksZ - 1, blockZ + 1) : blockZ;
+										for(int y = 0; y < ys; y++) {
+											int blockY = (y0 + y) >> blockShift;
+											int yLow = ((y0 + y) & blockMask) == 0 ? Math.max(0, blockY - 1) : blockY;
+											int yHigh = ((y0 + y) & blockMask) == blockMask ? Math.min(blocksY - 1, blockY + 1) : blockY;
+											int row = (z * brickSize + y) * brickSize;
+											for(int x = 0; x < xs; x++) {
+												int blockX = (x0 + x) >> blockShift;
+												int xLow = ((x0 + x) & blockMask) == 0 ? Math.max(0, blockX - 1) : blockX;
+												int xHigh = ((x0 + x) & blockMask) == blockMask ? Math.min(blocksX - 1, blockX + 1) : blockX;
+												short val = data[row + x];
+												for(int nz = zLow; nz <= zHigh; nz++) {
+													for(int ny = yLow; ny <= yHigh; ny++) {
+														for(int nx = xLow; nx <= xHigh; nx++) {
+															int index = (nz * blocksY + ny) * blocksX + nx;
+															if(val < blockMin[index]) {
+																blockMin[index] = val;
+															}
+															if(val > blockMax[index]) {
+																blockMax[index] = val;
+															}
+														}
+													}
+												}
+											}
+										}
+									}
+								}
+							});
+						}
+					} catch(IOException e) {
+						throw new IllegalStateException("Could not read the bricked volume", e);
+					}
+				}
+			});
+		}
+		
+		for(int i = 0; i < blockMax.length; i++) {
+			// As in build, a negative max can come out one higher once interpolated
+			blockMaxBound[i] = blockMax[i] < 0 ? (short) (blockMax[i] + 1) : blockMax[i];
+		}
+	}
+	
+	/*
+	 * Returns how many more samples along the ray (dx, dy, dz per step) can be skipped from (x, y, z)
+	 * without missing a value above rayMax, or 0 if the block the position is in could beat it
+	 * The position must be inside the volume
+	 */
+	public int getSkippableSamples(float x, float y, float z, float dx, float dy, float dz, short rayMax) {
+		int bx = (int) x >> blockShift;
+		int by = (int) y >> blockShift;
+		int bz = (int) z >> blockShift;
+		
+		if(blockMaxBound[(bz * blocksY + by) * blocksX + bx] > rayMax) {
+			return 0;
+		}
+		
+		float steps = Math.min(stepsInside(x, dx, bx << blockShift, Math.min((bx + 1) << blockShift, width)),
+				Math.min(stepsInside(y, dy, by << blockShift, Math.min((by + 1) << blockShift, depth)),
+						stepsInside(z, dz, bz << blockShift, Math.min((bz + 1) << blockShift, height))));
+		
+		return (int) Math.max(0, Math.min(steps, width + depth + height));
+	}
+	
+	/*
+	 * Number of whole steps of size d from p that stay within [low, high) on one axis
+	 */
+	private static float stepsInside(float p, float d, int low, int high) {
+		if(d > 0) {
+			return (float) Math.floor((high - EDGE_MARGIN - p) / d);
+		} else if(d < 0) {
+			return (float) Math.floor((p - low - EDGE_MARGIN) / -d);
+		} else {
+			return Float.MAX_VALUE;
+		}
+	}
+	
+	public short getBlockMin(int bx, int by, int bz) {
+		return blockMin[(bz * blocksY + by) * blocksX + bx];
+	}
+	public short getBlockMaxBound(int bx, int by, int bz) {
+		return blockMaxBound[(bz * blocksY + by) * blocksX + bx];
+	}
+	/*
+	 * Highest value a sample taken anywhere in the volume can have
+	 */
+	public short getMaxBound() {
+		return maxBound;
+	}
+	public int getBlockSize() {
+		return 1 << blockShift;
+	}
+	public int getBlocksX() {
+		return blocksX;
+	}
+	public int getBlocksY() {
+		return blocksY;
+	}
+	public int getBlocksZ() {
+		return blocksZ;
+	}
+	public long getBuildTimeNanos() {
+		return buildTimeNanos;
+	}
+}
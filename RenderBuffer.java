@@ -0,0 +1,64 @@
+import java.awt.image.BufferedImage;
+
+/*
+ * The value sampled for each pixel of a view, kept before it is coloured
+ * Colouring is one table lookup per pixel, so a view holding its values can be recoloured after a change of
+ * colour, window or equalization in a fraction of the time it took to sample the volume
+ */
+public class RenderBuffer {
+	private final int width;
+	private final int height;
+	
+	// One value per pixel, a row at a time
+	private final short[] values;
+	
+	public RenderBuffer(int width, int height) {
+		if(width < 1 || height < 1 || (long) width * height > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid buffer size " + width + "x" + height);
+		}
+		
+		this.width = width;
+		this.height = height;
+		values = new short[width * height];
+	}
+	
+	/*
+	 * Colours every value into a TYPE_3BYTE_BGR image of the same size, splitting the rows across the pool
+	 */
+	public BufferedImage colourise(BufferedImage image, final ColorLookupTable lut, final boolean equalize, RenderPool pool) {
+		if(image.getWidth() != width || image.getHeight() != height) {
+			throw new IllegalArgumentException("Image is " + image.getWidth() + "x" + image.getHeight() + " but the buffer is " + width + "x" + height);
+		}
+		
+		final byte[] imageData = VolumeData.getImageData(image);
+		pool.forEachBand(height, new RenderPool.BandRenderer() {
+			@Override
+			public void render(int start, int end) {
+				// The lookup table bounds the value and applies the equalization mapping if needed
+				for(int i = start * width; i < end * width; i++) {
+					lut.write(values[i], equalize, imageData, 3 * i);
+				}
+			}
+		});
+		return image;
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	public int getHeight() {
+		return height;
+	}
+	/*
+	 * Returns the backing array, with pixel (x, y) at index y * width + x
+	 */
+	public short[] getValues() {
+		return values;
+	}
+	public short get(int x, int y) {
+		return values[y * width + x];
+	}
+	public long getBytes() {
+		return 2L * values.length;
+	}
+}
@@ -0,0 +1,33 @@
+import java.nio.ShortBuffer;
+
+/*
+ * Inner loops of the renderers that can be swapped for a faster implementation
+ * Every implementation must give exactly the same values as the scalar code in VolumeData
+ */
+public interface RenderKernel {
+	/*
+	 * Casts one MIP ray through a volume held as a flat array, in the same way as VolumeData.getRotatedImage,
+	 * returning the maximum sample (or the first sample over the threshold)
+	 * The grid, if not null, is used to skip samples that cannot change the result
+	 */
+	public short castMipRay(short[] data, int width, int depth, int height, double[][] matrixN,
+			float scaledY, float scaledZ, boolean trilinear, short min, short threshold, MinMaxGrid grid);
+	
+	/*
+	 * The same, for a volume held in a buffer laid out like the array (as BufferVolumeStore holds it)
+	 * Only absolute reads are made, so the buffer can be shared between threads
+	 */
+	public short castMipRay(ShortBuffer data, int width, int depth, int height, double[][] matrixN,
+			float scaledY, float scaledZ, boolean trilinear, short min, short threshold, MinMaxGrid grid);
+	
+	/*
+	 * Reads count nearest neighbour samples for one row of a slice into out
+	 * Sample x comes from data[base + (int)((float)x * ratio) * stride]
+	 */
+	public void sampleNearestRow(short[] data, int base, int stride, float ratio, int count, short[] out);
+	
+	/*
+	 * The same, reading the samples from a buffer
+	 */
+	public void sampleNearestRow(ShortBuffer data, int base, int stride, float ratio, int count, short[] out);
+}
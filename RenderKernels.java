@@ -0,0 +1,29 @@
+/*
+ * Finds the optional kernels, which may not be usable on every JVM
+ */
+public final class RenderKernels {
+	private RenderKernels() {
+	}
+	
+	// Loaded the first time it is asked for, the kernels keep no state between calls so one is shared
+	private static final class VectorKernelHolder {
+		static final RenderKernel KERNEL = load("VectorRenderKernel");
+	}
+	
+	/*
+	 * Returns the kernel built on the incubating Vector API, or null if the JVM was not started
+	 * with --add-modules jdk.incubator.vector (or doesn't have the module at all)
+	 */
+	public static RenderKernel getVectorKernel() {
+		return VectorKernelHolder.KERNEL;
+	}
+	
+	private static RenderKernel load(String className) {
+		try {
+			// Loaded by name so this class still links when the module is missing
+			return (RenderKernel) Class.forName(className).getDeclaredConstructor().newInstance();
+		} catch(ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+}
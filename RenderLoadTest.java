@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Drives a RenderServer from localhost with a number of clients, each sending its next request as soon as
+ * the last one is answered, and prints the throughput and latency of each endpoint and status
+ * Without --url a server is started in process on a synthetic volume
+ *
+ * Usage: java RenderLoadTest [--url http://host:port] [--size WxDxH] [--clients n] [--seconds n] [--image-size n]
+ *                            [--workers n] [--queue n] [--mix slice,mip]
+ */
+public class RenderLoadTest {
+	private String url;
+	private int width = 256;
+	private int depth = 256;
+	private int height = 113;
+	private int clients = 2 * Runtime.getRuntime().availableProcessors();
+	private long seconds = 10;
+	private int imageSize = 256;
+	private int workers = Runtime.getRuntime().availableProcessors();
+	private int queue = 4 * Runtime.getRuntime().availableProcessors();
+	private String[] mix = {"slice", "mip"};
+	
+	// Client side latencies, one operation per endpoint and status
+	private final RenderMetrics latencies = new RenderMetrics();
+	private final LongAdder errors = new LongAdder();
+	
+	public static void main(String[] args) throws Exception {
+		RenderLoadTest test = new RenderLoadTest();
+		test.parseArgs(args);
+		test.run();
+	}
+	
+	private void parseArgs(String[] args) {
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + arg);
+			}
+			String value = args[++i];
+			
+			if(arg.equals("--url")) {
+				url = value;
+			} else if(arg.equals("--size")) {
+				String[] dims = value.split("x");
+				width = Integer.parseInt(dims[0]);
+				depth = Integer.parseInt(dims.length > 1 ? dims[1] : dims[0]);
+				height = Integer.parseInt(dims.length > 2 ? dims[2] : dims[0]);
+			} else if(arg.equals("--clients")) {
+				clients = Integer.parseInt(value);
+			} else if(arg.equals("--seconds")) {
+				seconds = Long.parseLong(value);
+			} else if(arg.equals("--image-size")) {
+				imageSize = Integer.parseInt(value);
+			} else if(arg.equals("--workers")) {
+				workers = Integer.parseInt(value);
+			} else if(arg.equals("--queue")) {
+				queue = Integer.parseInt(value);
+			} else if(arg.equals("--mix")) {
+				mix = value.split(",");
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+	}
+	
+	private void run() throws Exception {
+		RenderServer server = null;
+		if(url == null) {
+			System.out.println("Serving a " + width + "x" + depth + "x" + height + " synthetic volume with " + workers + " workers");
+			VolumeData vd = new VolumeData(SyntheticVolume.create(width, depth, height));
+			vd.setRenderThreads(1);
+			server = new RenderServer(vd, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), workers, queue);
+			server.start();
+			url = "http://localhost:" + server.getPort();
+		}
+		
+		System.out.println("Running " + clients + " clients against " + url + " for " + seconds + " s");
+		final long endTime = System.nanoTime() + seconds * 1000000000L;
+		Thread[] threads = new Thread[clients];
+		for(int c = 0; c < clients; c++) {
+			// Each client has its own seed so runs send the same requests
+			final Random random = new Random(c);
+			threads[c] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while(System.nanoTime() < endTime) {
+						request(random);
+					}
+				}
+			}, "load-client-" + c);
+			threads[c].start();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+		
+		for(String operation : latencies.getOperations()) {
+			long count = latencies.getCount(operation);
+			System.out.println(String.format(Locale.ROOT, "%-24s %8d requests, %8.1f/s, mean %8.2f ms, p50 %8.2f ms, p99 %8.2f ms, max %8.2f ms",
+					operation, count, (double) count / seconds, latencies.getMeanMillis(operation),
+					latencies.getPercentileMillis(operation, 50), latencies.getPercentileMillis(operation, 99), latencies.getMaxMillis(operation)));
+		}
+		System.out.println(errors.sum() + " requests failed to connect or read");
+		
+		if(server != null) {
+			System.out.println("Server metrics:");
+			System.out.println(server.getMetrics().getSummary());
+			server.stop(0);
+		}
+	}
+	
+	/*
+	 * Sends one request for a random slice or MIP, timing it until the whole response has been read
+	 */
+	private void request(Random random) {
+		String endpoint = mix[random.nextInt(mix.length)];
+		String query;
+		if(endpoint.equals("slice")) {
+			String axis = VolumeData.Axis.values()[random.nextInt(3)].name();
+			// Out of range slices are answered with 400, so stay within the smallest dimension
+			int slice = random.nextInt(Math.min(width, Math.min(depth, height)));
+			query = "axis=" + axis + "&slice=" + slice + "&size=" + imageSize + "&format=raw";
+		} else {
+			query = "p=" + random.nextInt(360) + "&q=" + random.nextInt(360) + "&r=" + random.nextInt(360) + "&size=" + imageSize + "&format=raw";
+		}
+		
+		long startTime = System.nanoTime();
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(url + "/" + endpoint + "?" + query).openConnection();
+			int status = connection.getResponseCode();
+			// Reading the body to the end lets the connection be kept alive for the next request
+			try(InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+				if(in != null) {
+					byte[] buffer = new byte[64 * 1024];
+					while(in.read(buffer) >= 0) {
+					}
+				}
+			}
+			latencies.record("/" + endpoint + " " + status, System.nanoTime() - startTime);
+		} catch(IOException e) {
+			errors.increment();
+		}
+	}
+}
@@ -0,0 +1,259 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * Latency histograms and counters for rendering, cheap enough to leave on all the time
+ * Recording a latency is a couple of LongAdder increments, so render threads never contend on a lock
+ *
+ * Each operation has a histogram of power of two buckets of nanoseconds, which is plenty to tell a
+ * 5 ms slice from a 50 ms one and needs no sorting or sample storage
+ */
+public class RenderMetrics implements RenderMetricsMBean {
+	private static final Logger LOG = Logger.getLogger(RenderMetrics.class.getName());
+	private static final int BUCKETS = 64;
+	
+	/*
+	 * Latencies of one operation, bucket b counting those from 2^(b - 1) up to 2^b - 1 nanoseconds
+	 */
+	private static final class Histogram {
+		final LongAdder[] buckets = new LongAdder[BUCKETS];
+		final LongAdder count = new LongAdder();
+		final LongAdder totalNanos = new LongAdder();
+		final LongAccumulator maxNanos = new LongAccumulator(new LongBinaryOperator() {
+			@Override
+			public long applyAsLong(long left, long right) {
+				return Math.max(left, right);
+			}
+		}, 0);
+		
+		Histogram() {
+			for(int i = 0; i < BUCKETS; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+		
+		void record(long nanos) {
+			nanos = Math.max(0, nanos);
+			buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos))].increment();
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+		}
+		
+		long percentileNanos(double percent) {
+			long total = count.sum();
+			if(total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+			long seen = 0;
+			for(int b = 0; b < BUCKETS; b++) {
+				seen += buckets[b].sum();
+				if(seen >= rank) {
+					// Report the top of the bucket, but never more than the slowest one seen
+					return Math.min(b == 0 ? 0 : (1L << b) - 1, maxNanos.get());
+				}
+			}
+			return maxNanos.get();
+		}
+	}
+	
+	private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private final LongAdder samplesProcessed = new LongAdder();
+	private final LongAdder samplesSkipped = new LongAdder();
+	private volatile long loadNanos;
+	
+	// Counted elsewhere already, so they are read from their owners rather than counted twice
+	private volatile SliceCache sliceCache;
+	private volatile RenderScheduler scheduler;
+	private volatile BrickedVolumeStore brickedStore;
+	
+	private ScheduledExecutorService logger;
+	
+	/*
+	 * Adds one run of an operation that took the given number of nanoseconds
+	 */
+	public void record(String operation, long nanos) {
+		Histogram histogram = histograms.get(operation);
+		if(histogram == null) {
+			Histogram created = new Histogram();
+			histogram = histograms.putIfAbsent(operation, created);
+			if(histogram == null) {
+				histogram = created;
+			}
+		}
+		histogram.record(nanos);
+	}
+	
+	public void addSamples(long processed, long skipped) {
+		samplesProcessed.add(processed);
+		samplesSkipped.add(skipped);
+	}
+	
+	public void recordLoad(long nanos) {
+		loadNanos = nanos;
+		record("load", nanos);
+	}
+	
+	public void watchSliceCache(SliceCache sliceCache) {
+		this.sliceCache = sliceCache;
+	}
+	public void watchScheduler(RenderScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+	/*
+	 * Reports the brick cache of the store, or nothing if it isn't a bricked store
+	 */
+	public void watchStore(VolumeStore store) {
+		brickedStore = store instanceof BrickedVolumeStore ? (BrickedVolumeStore) store : null;
+	}
+	
+	/*
+	 * Publishes these metrics on the platform MBean server, where jconsole can find them under VolumeDataVisualiser
+	 */
+	public void register(String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("VolumeDataVisualiser:type=RenderMetrics,name=" + ObjectName.quote(name)));
+		} catch(JMException e) {
+			throw new IllegalStateException("Could not register render metrics as " + name, e);
+		}
+	}
+	
+	/*
+	 * Logs the summary every periodSeconds on a background thread, until stopLogging is called
+	 */
+	public synchronized void startLogging(long periodSeconds) {
+		if(periodSeconds < 1) {
+			throw new IllegalArgumentException("Logging period must be at least a second: " + periodSeconds);
+		}
+		stopLogging();
+		
+		logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "render-metrics");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		logger.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				LOG.info(getSummary());
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+	public synchronized void stopLogging() {
+		if(logger != null) {
+			logger.shutdownNow();
+			logger = null;
+		}
+	}
+	
+	@Override
+	public String[] getOperations() {
+		String[] operations = histograms.keySet().toArray(new String[0]);
+		Arrays.sort(operations);
+		return operations;
+	}
+	@Override
+	public long getCount(String operation) {
+		Histogram histogram = histograms.get(operation);
+		return histogram == null ? 0 : histogram.count.sum();
+	}
+	@Override
+	public double getMeanMillis(String operation) {
+		Histogram histogram = histograms.get(operation);
+		if(histogram == null) {
+			return 0;
+		}
+		long count = histogram.count.sum();
+		return count == 0 ? 0 : histogram.totalNanos.sum() / 1e6 / count;
+	}
+	@Override
+	public double getMaxMillis(String operation) {
+		Histogram histogram = histograms.get(operation);
+		return histogram == null ? 0 : histogram.maxNanos.get() / 1e6;
+	}
+	@Override
+	public double getPercentileMillis(String operation, double percent) {
+		if(percent < 0 || percent > 100) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percent);
+		}
+		Histogram histogram = histograms.get(operation);
+		return histogram == null ? 0 : histogram.percentileNanos(percent) / 1e6;
+	}
+	
+	@Override
+	public long getSamplesProcessed() {
+		return samplesProcessed.sum();
+	}
+	@Override
+	public long getSamplesSkipped() {
+		return samplesSkipped.sum();
+	}
+	@Override
+	public long getDroppedFrames() {
+		RenderScheduler scheduler = this.scheduler;
+		return scheduler == null ? 0 : scheduler.getDroppedFrames();
+	}
+	@Override
+	public long getSliceCacheHits() {
+		SliceCache sliceCache = this.sliceCache;
+		return sliceCache == null ? 0 : sliceCache.getHits();
+	}
+	@Override
+	public long getSliceCacheMisses() {
+		SliceCache sliceCache = this.sliceCache;
+		return sliceCache == null ? 0 : sliceCache.getMisses();
+	}
+	@Override
+	public long getBrickCacheHits() {
+		BrickedVolumeStore brickedStore = this.brickedStore;
+		return brickedStore == null ? 0 : brickedStore.getCacheHits();
+	}
+	@Override
+	public long getBrickCacheMisses() {
+		BrickedVolumeStore brickedStore = this.brickedStore;
+		return brickedStore == null ? 0 : brickedStore.getCacheMisses();
+	}
+	@Override
+	public double getLoadTimeMillis() {
+		return loadNanos / 1e6;
+	}
+	
+	@Override
+	public String getSummary() {
+		StringBuilder summary = new StringBuilder();
+		summary.append(String.format(Locale.ROOT, "load %.1f ms, %d samples processed, %d skipped, %d frames dropped, slice cache %d hits %d misses, brick cache %d hits %d misses",
+				getLoadTimeMillis(), getSamplesProcessed(), getSamplesSkipped(), getDroppedFrames(),
+				getSliceCacheHits(), getSliceCacheMisses(), getBrickCacheHits(), getBrickCacheMisses()));
+		for(String operation : getOperations()) {
+			summary.append(String.format(Locale.ROOT, "%n%-32s %8d runs, mean %8.2f ms, p50 %8.2f ms, p99 %8.2f ms, max %8.2f ms",
+					operation, getCount(operation), getMeanMillis(operation),
+					getPercentileMillis(operation, 50), getPercentileMillis(operation, 99), getMaxMillis(operation)));
+		}
+		return summary.toString();
+	}
+	
+	@Override
+	public void reset() {
+		histograms.clear();
+		samplesProcessed.reset();
+		samplesSkipped.reset();
+	}
+}
@@ -0,0 +1,29 @@
+/*
+ * What RenderMetrics publishes over JMX, so jconsole or any other JMX client can see which views are slow
+ * Latencies are in milliseconds, and percentiles are the upper edge of the power of two bucket they fall in
+ */
+public interface RenderMetricsMBean {
+	/*
+	 * Names of every operation timed so far, such as "slice X Linear" or "rotated Composite Linear"
+	 */
+	String[] getOperations();
+	long getCount(String operation);
+	double getMeanMillis(String operation);
+	double getMaxMillis(String operation);
+	double getPercentileMillis(String operation, double percent);
+	
+	long getSamplesProcessed();
+	long getSamplesSkipped();
+	long getDroppedFrames();
+	long getSliceCacheHits();
+	long getSliceCacheMisses();
+	long getBrickCacheHits();
+	long getBrickCacheMisses();
+	double getLoadTimeMillis();
+	
+	/*
+	 * Every counter and each operation's count, mean, p50, p99 and max, one per line
+	 */
+	String getSummary();
+	void reset();
+}
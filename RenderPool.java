@@ -0,0 +1,116 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Splits a render into bands of rows and runs the bands across a fixed number of threads
+ * A pool with a single thread runs every band on the calling thread instead
+ * 
+ * Shutting the pool down lets renders already using it finish, and any render that starts on it
+ * afterwards runs on its calling thread, so a pool can be swapped out while other threads hold it
+ */
+public class RenderPool {
+	// Renders the rows from start (inclusive) to end (exclusive)
+	public interface BandRenderer {
+		void render(int start, int end);
+	}
+	
+	// Giving each thread several bands evens out rows that are cheaper than others
+	private static final int BANDS_PER_THREAD = 4;
+	
+	private final int threads;
+	private final ForkJoinPool pool;
+	
+	// Guarded by this pool, the threads are stopped once it is shut down and no render is using it
+	private int activeRenders;
+	private boolean shutdown;
+	
+	public RenderPool(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Thread count must be at least 1: " + threads);
+		}
+		
+		this.threads = threads;
+		pool = threads > 1 ? new ForkJoinPool(threads) : null;
+	}
+	
+	/*
+	 * Calls the renderer over every row in [0, rows), returning once all bands are complete
+	 */
+	public void forEachBand(int rows, BandRenderer renderer) {
+		if(rows <= 0) {
+			return;
+		}
+		
+		if(pool == null || rows == 1 || !enter()) {
+			renderer.render(0, rows);
+			return;
+		}
+		
+		try {
+			int bands = threads * BANDS_PER_THREAD;
+			int bandSize = Math.max(1, (rows + bands - 1) / bands);
+			pool.invoke(new BandTask(renderer, 0, rows, bandSize));
+		} finally {
+			exit();
+		}
+	}
+	
+	private synchronized boolean enter() {
+		if(shutdown) {
+			return false;
+		}
+		activeRenders++;
+		return true;
+	}
+	
+	private synchronized void exit() {
+		if(--activeRenders == 0 && shutdown) {
+			pool.shutdown();
+		}
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
+	/*
+	 * Stops the threads once the renders using them have finished, later renders run on their calling thread
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		if(pool != null && activeRenders == 0) {
+			pool.shutdown();
+		}
+	}
+	
+	private static final class BandTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final BandRenderer renderer;
+		private final int start;
+		private final int end;
+		private final int bandSize;
+		
+		private BandTask(BandRenderer renderer, int start, int end, int bandSize) {
+			this.renderer = renderer;
+			this.start = start;
+			this.end = end;
+			this.bandSize = bandSize;
+		}
+		
+		@Override
+		protected void compute() {
+			if(end - start <= bandSize) {
+				renderer.render(start, end);
+				return;
+			}
+			
+			// Split on a band boundary so every band is the same size apart from the last
+			int mid = start + (((end - start) / bandSize) / 2) * bandSize;
+			if(mid == start) {
+				mid += bandSize;
+			}
+			invokeAll(new BandTask(renderer, start, mid, bandSize), new BandTask(renderer, mid, end, bandSize));
+		}
+	}
+}
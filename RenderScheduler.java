@@ -0,0 +1,181 @@
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+
+/*
+ * Runs renders off the Event Dispatch Thread and hands the finished images back to Swing
+ * 
+ * Each view keeps at most one render waiting, so when a newer request arrives the waiting one
+ * is dropped. Renders already in progress can see they have been superseded through their ticket,
+ * and frames older than one already shown are never published.
+ */
+public class RenderScheduler {
+	// Renders one frame, returning null if it gave up because the ticket was superseded
+	public interface RenderJob {
+		BufferedImage render(Ticket ticket);
+	}
+	
+	// Called on the Event Dispatch Thread with each frame that should be shown
+	public interface FrameListener {
+		void frameReady(BufferedImage image);
+	}
+	
+	private static final Logger LOG = Logger.getLogger(RenderScheduler.class.getName());
+	
+	private final ExecutorService workers;
+	private final AtomicLong droppedFrames = new AtomicLong();
+	
+	public RenderScheduler() {
+		workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "render-" + count.incrementAndGet());
+				// Don't stop the application from exiting when the window is closed
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/*
+	 * The name is only used to say which view a failed render was for
+	 */
+	public View createView(String name, FrameListener listener) {
+		return new View(name, listener);
+	}
+	
+	/*
+	 * Number of requests that were replaced before they ran, or finished after a newer frame was shown
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames.get();
+	}
+	
+	public void shutdown() {
+		workers.shutdownNow();
+	}
+	
+	/*
+	 * One image on screen, with its own latest-wins queue
+	 */
+	public final class View {
+		private final String name;
+		private final FrameListener listener;
+		
+		// Guarded by this view
+		private RenderJob pending;
+		private long pendingGeneration;
+		private boolean running;
+		
+		// Generation of the newest request, and of the newest frame handed to the listener
+		private volatile long generation;
+		private long publishedGeneration;
+		
+		private View(String name, FrameListener listener) {
+			this.name = name;
+			this.listener = listener;
+		}
+		
+		public void submit(RenderJob job) {
+			synchronized(this) {
+				if(pending != null) {
+					droppedFrames.incrementAndGet();
+				}
+				pending = job;
+				pendingGeneration = ++generation;
+				
+				if(running) {
+					// The running worker picks this up once it has finished its current job
+					return;
+				}
+				running = true;
+			}
+			
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			});
+		}
+		
+		private void drain() {
+			while(true) {
+				RenderJob job;
+				long jobGeneration;
+				synchronized(this) {
+					if(pending == null) {
+						running = false;
+						return;
+					}
+					job = pending;
+					jobGeneration = pendingGeneration;
+					pending = null;
+				}
+				
+				try {
+					BufferedImage image = job.render(new Ticket(this, jobGeneration));
+					if(image != null) {
+						publish(image, jobGeneration);
+					} else {
+						droppedFrames.incrementAndGet();
+					}
+				} catch(RuntimeException e) {
+					// Keep the worker alive for later requests
+					LOG.log(Level.WARNING, "Could not render the " + name + " view", e);
+				}
+			}
+		}
+		
+		/*
+		 * Hands an image for the given request to the listener, unless a newer one has already been shown
+		 * Jobs can call this through their ticket to show partial results
+		 */
+		private void publish(final BufferedImage image, final long frameGeneration) {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					if(frameGeneration < publishedGeneration) {
+						droppedFrames.incrementAndGet();
+						return;
+					}
+					publishedGeneration = frameGeneration;
+					listener.frameReady(image);
+				}
+			});
+		}
+	}
+	
+	/*
+	 * Given to each job so it can tell whether a newer request has arrived for its view
+	 */
+	public static final class Ticket {
+		private final View view;
+		private final long generation;
+		
+		private Ticket(View view, long generation) {
+			this.view = view;
+			this.generation = generation;
+		}
+		
+		public boolean isSuperseded() {
+			return view.generation != generation;
+		}
+		
+		/*
+		 * Shows an intermediate image for this request while the job carries on
+		 */
+		public void publish(BufferedImage image) {
+			view.publish(image, generation);
+		}
+	}
+}
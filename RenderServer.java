@@ -0,0 +1,329 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Serves slices and MIPs of one volume over HTTP, for tools that want images without the Swing interface
+ * The volume is shared by every request and never changed once the server is built, so renders need no locking
+ *
+ * The HTTP server's own thread only hands each request to a fixed pool of workers with a bounded queue.
+ * Once every worker is busy and the queue is full, requests are turned away with 503 at once rather than
+ * piling up, so a burst of clients can't run the server out of memory
+ *
+ * Endpoints (all GET):
+ *   /slice?axis=X|Y|Z&slice=n&size=WxH&interpolation=Linear&equalize=false&format=png|raw
+ *   /mip?p=deg&q=deg&r=deg&size=WxH&threshold=v&interpolation=Linear&format=png|raw
+ *   /metrics    the metrics summary as text
+ * Raw images are the BGR bytes of each row in turn, with the size in the X-Image-Width and X-Image-Height headers
+ *
+ * Usage: java RenderServer <volume> <width> <height> <depth> [--port n] [--workers n] [--queue n] [--render-threads n] [--header-offset bytes]
+ */
+public class RenderServer {
+	public static final int DEFAULT_PORT = 8080;
+	
+	private static final Logger LOG = Logger.getLogger(RenderServer.class.getName());
+	// Larger images are refused, as each one is held in memory until it has been sent
+	private static final int MAX_IMAGE_SIZE = 4096;
+	private static final int DEFAULT_IMAGE_SIZE = 256;
+	
+	// Renders the image a request asks for
+	private interface ImageRenderer {
+		BufferedImage render(Map<String, String> params);
+	}
+	
+	private final VolumeData vd;
+	private final RenderMetrics metrics;
+	private final HttpServer server;
+	private final ThreadPoolExecutor workers;
+	
+	/*
+	 * Builds a server for the volume, which should not be changed while the server is running
+	 * At most workerThreads requests are rendered at once, with up to queueSize more waiting for a worker
+	 */
+	public RenderServer(final VolumeData vd, InetSocketAddress address, int workerThreads, int queueSize) throws IOException {
+		if(workerThreads < 1 || queueSize < 1) {
+			throw new IllegalArgumentException("Need at least one worker and one queue slot: " + workerThreads + ", " + queueSize);
+		}
+		
+		this.vd = vd;
+		metrics = vd.getMetrics();
+		
+		final AtomicInteger threadCount = new AtomicInteger();
+		workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "render-server-" + threadCount.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.AbortPolicy());
+		
+		server = HttpServer.create(address, 0);
+		// Handlers run on the server's dispatch thread, which is fine as they only queue the work
+		server.setExecutor(null);
+		server.createContext("/slice", new Endpoint("/slice", new ImageRenderer() {
+			@Override
+			public BufferedImage render(Map<String, String> params) {
+				VolumeData.Axis axis = VolumeData.Axis.valueOf(get(params, "axis", "Z"));
+				int slices = sliceCount(axis);
+				int slice = Integer.parseInt(get(params, "slice", String.valueOf(slices / 2)));
+				if(slice < 0 || slice >= slices) {
+					throw new IllegalArgumentException("Slice " + slice + " is outside 0 to " + (slices - 1) + " on axis " + axis);
+				}
+				
+				BufferedImage image = createImage(params);
+				return vd.sliceImage(image, axis, slice, interpolation(params), Boolean.parseBoolean(get(params, "equalize", "false")));
+			}
+		}));
+		server.createContext("/mip", new Endpoint("/mip", new ImageRenderer() {
+			@Override
+			public BufferedImage render(Map<String, String> params) {
+				double p = Math.toRadians(Double.parseDouble(get(params, "p", "0")));
+				double q = Math.toRadians(Double.parseDouble(get(params, "q", "0")));
+				double r = Math.toRadians(Double.parseDouble(get(params, "r", "0")));
+				short threshold = Short.parseShort(get(params, "threshold", String.valueOf(vd.getMaxValue())));
+				
+				BufferedImage image = createImage(params);
+				return vd.getRotatedImage(image, p, q, r, interpolation(params), threshold);
+			}
+		}));
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				sendText(exchange, 200, metrics.getSummary());
+			}
+		});
+	}
+	
+	/*
+	 * Queues requests to one endpoint on the workers, timing each from arrival to its response being sent
+	 */
+	private final class Endpoint implements HttpHandler {
+		private final String name;
+		private final ImageRenderer renderer;
+		
+		Endpoint(String name, ImageRenderer renderer) {
+			this.name = name;
+			this.renderer = renderer;
+		}
+		
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			final long startTime = System.nanoTime();
+			if(!exchange.getRequestMethod().equals("GET")) {
+				sendText(exchange, 405, "Only GET is supported");
+				return;
+			}
+			
+			try {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						respond(exchange, startTime);
+					}
+				});
+			} catch(RejectedExecutionException e) {
+				metrics.record("http " + name + " rejected", System.nanoTime() - startTime);
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				sendText(exchange, 503, "Every worker is busy, try again shortly");
+			}
+		}
+		
+		private void respond(HttpExchange exchange, long startTime) {
+			try {
+				try {
+					Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+					String format = get(params, "format", "png");
+					if(!format.equals("png") && !format.equals("raw")) {
+						throw new IllegalArgumentException("Format must be png or raw: " + format);
+					}
+					
+					BufferedImage image = renderer.render(params);
+					byte[] body;
+					if(format.equals("raw")) {
+						body = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+						exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+					} else {
+						ByteArrayOutputStream png = new ByteArrayOutputStream();
+						ImageIO.write(image, "png", png);
+						body = png.toByteArray();
+						exchange.getResponseHeaders().set("Content-Type", "image/png");
+					}
+					exchange.getResponseHeaders().set("X-Image-Width", String.valueOf(image.getWidth()));
+					exchange.getResponseHeaders().set("X-Image-Height", String.valueOf(image.getHeight()));
+					send(exchange, 200, body);
+					metrics.record("http " + name, System.nanoTime() - startTime);
+				} catch(IllegalArgumentException e) {
+					metrics.record("http " + name + " bad request", System.nanoTime() - startTime);
+					sendText(exchange, 400, e.getMessage());
+				} catch(RuntimeException e) {
+					LOG.log(Level.WARNING, "Could not render " + exchange.getRequestURI(), e);
+					metrics.record("http " + name + " failed", System.nanoTime() - startTime);
+					sendText(exchange, 500, "Could not render the image");
+				}
+			} catch(IOException e) {
+				// The client has most likely gone away, so there is no one to tell
+				LOG.log(Level.FINE, "Could not send the response to " + exchange.getRequestURI(), e);
+				exchange.close();
+			}
+		}
+	}
+	
+	public void start() {
+		server.start();
+	}
+	
+	/*
+	 * Stops accepting requests, giving those already running up to delaySeconds to finish
+	 */
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		workers.shutdown();
+	}
+	
+	/*
+	 * The port being listened on, useful when the server was given port 0 to pick a free one
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+	public RenderMetrics getMetrics() {
+		return metrics;
+	}
+	
+	private int sliceCount(VolumeData.Axis axis) {
+		switch(axis) {
+		case X:
+			return vd.getDataWidth();
+		case Y:
+			return vd.getDataDepth();
+		default:
+			return vd.getDataHeight();
+		}
+	}
+	
+	/*
+	 * Makes an image of the size asked for, as either size=n for a square or size=WxH
+	 */
+	private static BufferedImage createImage(Map<String, String> params) {
+		String[] size = get(params, "size", String.valueOf(DEFAULT_IMAGE_SIZE)).split("x");
+		int width = Integer.parseInt(size[0]);
+		int height = Integer.parseInt(size[size.length - 1]);
+		if(width < 1 || height < 1 || width > MAX_IMAGE_SIZE || height > MAX_IMAGE_SIZE) {
+			throw new IllegalArgumentException("Image size must be between 1 and " + MAX_IMAGE_SIZE + ": " + width + "x" + height);
+		}
+		return new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+	}
+	
+	private static VolumeData.Interpolation interpolation(Map<String, String> params) {
+		return VolumeData.Interpolation.valueOf(get(params, "interpolation", VolumeData.Interpolation.Linear.name()));
+	}
+	
+	private static String get(Map<String, String> params, String name, String defaultValue) {
+		String value = params.get(name);
+		return value == null ? defaultValue : value;
+	}
+	
+	private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<String, String>();
+		if(query == null || query.isEmpty()) {
+			return params;
+		}
+		for(String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			String name = equals < 0 ? pair : pair.substring(0, equals);
+			String value = equals < 0 ? "" : pair.substring(equals + 1);
+			params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+		}
+		return params;
+	}
+	
+	private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		send(exchange, status, (text + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.sendResponseHeaders(status, body.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if(args.length < 4) {
+			System.out.println("Usage: java RenderServer <volume> <width> <height> <depth> [--port n] [--workers n] [--queue n] [--render-threads n] [--header-offset bytes]");
+			return;
+		}
+		
+		int port = DEFAULT_PORT;
+		int workerThreads = Runtime.getRuntime().availableProcessors();
+		int queueSize = -1;
+		int renderThreads = 1;
+		long headerOffset = 0;
+		for(int i = 4; i < args.length; i++) {
+			String arg = args[i];
+			if(i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + arg);
+			}
+			String value = args[++i];
+			
+			if(arg.equals("--port")) {
+				port = Integer.parseInt(value);
+			} else if(arg.equals("--workers")) {
+				workerThreads = Integer.parseInt(value);
+			} else if(arg.equals("--queue")) {
+				queueSize = Integer.parseInt(value);
+			} else if(arg.equals("--render-threads")) {
+				renderThreads = Integer.parseInt(value);
+			} else if(arg.equals("--header-offset")) {
+				headerOffset = Long.parseLong(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+		if(queueSize < 1) {
+			queueSize = 4 * workerThreads;
+		}
+		
+		String filename = args[0];
+		VolumeData vd;
+		if(filename.endsWith(CompressedVolumeFile.EXTENSION)) {
+			try(CompressedVolumeFile file = new CompressedVolumeFile(filename)) {
+				vd = new VolumeData(file);
+			}
+		} else {
+			vd = new VolumeData(filename, Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), headerOffset);
+		}
+		// Requests are already rendered in parallel, so by default each one is rendered on a single thread
+		vd.setRenderThreads(renderThreads);
+		vd.getMetrics().register("RenderServer");
+		
+		RenderServer server = new RenderServer(vd, new InetSocketAddress(port), workerThreads, queueSize);
+		server.start();
+		System.out.println("Serving " + filename + " on port " + server.getPort() + " with " + workerThreads + " workers");
+	}
+}
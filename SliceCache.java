@@ -0,0 +1,197 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Keeps recently rendered slices so scrubbing back over them doesn't render them again
+ * Slices are dropped least recently used first once the cache goes over its memory cap
+ * 
+ * Slices are kept as values rather than colours, so a change of colour, window or equalization doesn't
+ * empty the cache. Buffers handed out by the cache are shared, so they must not be written to
+ */
+public class SliceCache {
+	private final VolumeData vd;
+	private final long maxBytes;
+	
+	// Guarded by this cache, in least recently used order
+	private final LinkedHashMap<Key, RenderBuffer> slices = new LinkedHashMap<Key, RenderBuffer>(16, 0.75f, true);
+	private long bytes;
+	// Bumped by clear, so slices rendered from the volume before it changed aren't stored afterwards
+	private long generation;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong prefetched = new AtomicLong();
+	
+	private final ExecutorService prefetcher;
+	// Bumped for every prefetch request so older requests stop once a newer one arrives
+	private final AtomicLong prefetchGeneration = new AtomicLong();
+	
+	public SliceCache(VolumeData vd, long maxBytes) {
+		this.vd = vd;
+		this.maxBytes = maxBytes;
+		
+		prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "slice-prefetch");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+	
+	/*
+	 * Returns the slice from the cache, rendering and storing it first if it isn't there
+	 */
+	public RenderBuffer getSlice(VolumeData.Axis axis, int slice, int width, int height, VolumeData.Interpolation interpolation) {
+		Key key = new Key(axis, slice, width, height, interpolation);
+		
+		RenderBuffer buffer = lookup(key);
+		if(buffer != null) {
+			hits.incrementAndGet();
+			return buffer;
+		}
+		
+		misses.incrementAndGet();
+		return render(key);
+	}
+	
+	/*
+	 * Renders the next count slices after slice in the given direction (1 or -1) in the background
+	 * Any prefetching still queued from an earlier call is abandoned
+	 */
+	public void prefetch(final VolumeData.Axis axis, final int slice, final int direction, final int count, final int sliceCount,
+			final int width, final int height, final VolumeData.Interpolation interpolation) {
+		final long generation = prefetchGeneration.incrementAndGet();
+		
+		prefetcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				for(int i = 1; i <= count; i++) {
+					int next = slice + i * direction;
+					if(next < 0 || next >= sliceCount || prefetchGeneration.get() != generation) {
+						return;
+					}
+					
+					Key key = new Key(axis, next, width, height, interpolation);
+					if(lookup(key) == null) {
+						render(key);
+						prefetched.incrementAndGet();
+					}
+				}
+			}
+		});
+	}
+	
+	private synchronized RenderBuffer lookup(Key key) {
+		return slices.get(key);
+	}
+	
+	private RenderBuffer render(Key key) {
+		long generation;
+		synchronized(this) {
+			generation = this.generation;
+		}
+		
+		RenderBuffer buffer = new RenderBuffer(key.width, key.height);
+		vd.sliceValues(buffer, key.axis, key.slice, key.interpolation);
+		store(key, buffer, generation);
+		return buffer;
+	}
+	
+	private synchronized void store(Key key, RenderBuffer buffer, long generation) {
+		long size = buffer.getBytes();
+		if(size > maxBytes || generation != this.generation) {
+			return;
+		}
+		
+		RenderBuffer old = slices.put(key, buffer);
+		if(old != null) {
+			bytes -= old.getBytes();
+		}
+		bytes += size;
+		
+		Iterator<Map.Entry<Key, RenderBuffer>> oldest = slices.entrySet().iterator();
+		while(bytes > maxBytes && oldest.hasNext()) {
+			bytes -= oldest.next().getValue().getBytes();
+			oldest.remove();
+		}
+	}
+	
+	/*
+	 * Drops every slice, for when the volume itself has changed
+	 */
+	public synchronized void clear() {
+		slices.clear();
+		bytes = 0;
+		generation++;
+	}
+	
+	public void shutdown() {
+		prefetcher.shutdownNow();
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	public long getMisses() {
+		return misses.get();
+	}
+	public long getPrefetched() {
+		return prefetched.get();
+	}
+	public double getHitRate() {
+		long lookups = hits.get() + misses.get();
+		return lookups == 0 ? 0 : (double) hits.get() / lookups;
+	}
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	public synchronized int getSize() {
+		return slices.size();
+	}
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	private static final class Key {
+		private final VolumeData.Axis axis;
+		private final int slice;
+		private final int width;
+		private final int height;
+		private final VolumeData.Interpolation interpolation;
+		
+		private Key(VolumeData.Axis axis, int slice, int width, int height, VolumeData.Interpolation interpolation) {
+			this.axis = axis;
+			this.slice = slice;
+			this.width = width;
+			this.height = height;
+			this.interpolation = interpolation;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return axis == k.axis && slice == k.slice && width == k.width && height == k.height
+					&& interpolation == k.interpolation;
+		}
+		
+		@Override
+		public int hashCode() {
+			int hash = axis.hashCode();
+			hash = 31 * hash + slice;
+			hash = 31 * hash + width;
+			hash = 31 * hash + height;
+			return 31 * hash + interpolation.hashCode();
+		}
+	}
+}
@@ -0,0 +1,178 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Reads a raw volume of little endian 16 bit voxels onto the heap a batch of z planes at a time on a background thread
+ * The volume can be shown as soon as the loader is created: planes arrive in order, the statistics are kept up to date
+ * as they do, and views of planes that are already in (such as their Z slices) render in full while the rest loads
+ * Planes that haven't arrived yet read as 0
+ */
+public class StreamingVolumeLoader {
+	// Planes are read in batches of about this many bytes
+	private static final int BATCH_BYTES = 1 << 20;
+	// The statistics and listener are brought up to date at most this often, and once more when the last plane is in
+	private static final long PROGRESS_NANOS = 100000000L;
+	
+	public interface Listener {
+		/*
+		 * Called on the loading thread whenever more planes have arrived, once the statistics include them
+		 */
+		void planesLoaded(int loaded, int total);
+		/*
+		 * Called on the loading thread once the volume is complete, or with the error that stopped it part way
+		 */
+		void loadFinished(IOException error);
+	}
+	
+	private final String filename;
+	private final long headerOffset;
+	private final ArrayVolumeStore store;
+	private final VolumeData vd;
+	// Only touched by the loading thread once it has started
+	private final VolumeStatistics.Accumulator accumulator = new VolumeStatistics.Accumulator();
+	
+	private volatile int loadedPlanes;
+	private Thread thread;
+	private volatile IOException error;
+	
+	public StreamingVolumeLoader(String filename) throws IOException {
+		this(filename, VolumeData.DEFAULT_DATA_WIDTH, VolumeData.DEFAULT_DATA_DEPTH, VolumeData.DEFAULT_DATA_HEIGHT, 0);
+	}
+	
+	/*
+	 * Checks the file is large enough and allocates the volume, but reads nothing until start is called
+	 */
+	public StreamingVolumeLoader(String filename, int dataWidth, int dataDepth, int dataHeight, long headerOffset) throws IOException {
+		if(headerOffset < 0) {
+			throw new IllegalArgumentException("Header offset cannot be negative: " + headerOffset);
+		}
+		
+		long size = 2L * ArrayVolumeStore.checkedSize(dataWidth, dataDepth, dataHeight);
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			if(channel.size() < headerOffset + size) {
+				throw new EOFException("File " + filename + " holds " + channel.size() + " bytes but " + (headerOffset + size) + " are needed");
+			}
+		}
+		
+		this.filename = filename;
+		this.headerOffset = headerOffset;
+		store = new ArrayVolumeStore(dataWidth, dataDepth, dataHeight);
+		vd = VolumeData.whileLoading(store, accumulator.snapshot());
+	}
+	
+	/*
+	 * Starts reading the planes on a daemon thread, the listener may be null
+	 */
+	public synchronized void start(final Listener listener) {
+		if(thread != null) {
+			throw new IllegalStateException("Loading has already started");
+		}
+		
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				load(listener);
+			}
+		}, "volume-loader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private void load(Listener listener) {
+		long startTime = System.nanoTime();
+		int planeVoxels = store.getWidth() * store.getDepth();
+		int planeCount = store.getHeight();
+		int batchPlanes = (int) Math.max(1, Math.min(planeCount, BATCH_BYTES / (2L * planeVoxels)));
+		short[] data = store.getData();
+		
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			ByteBuffer bytes = ByteBuffer.allocate(2 * planeVoxels * batchPlanes).order(ByteOrder.LITTLE_ENDIAN);
+			long position = headerOffset;
+			long lastProgress = System.nanoTime();
+			
+			for(int z = 0; z < planeCount; z += batchPlanes) {
+				int planes = Math.min(batchPlanes, planeCount - z);
+				bytes.clear();
+				bytes.limit(2 * planeVoxels * planes);
+				while(bytes.hasRemaining()) {
+					if(channel.read(bytes, position + bytes.position()) < 0) {
+						throw new EOFException("File " + filename + " ended part way through plane " + z);
+					}
+				}
+				bytes.flip();
+				position += bytes.limit();
+				
+				int from = z * planeVoxels;
+				bytes.asShortBuffer().get(data, from, planes * planeVoxels);
+				accumulator.add(data, from, from + planes * planeVoxels);
+				// Renders that see the new count are guaranteed to see the planes written before it
+				loadedPlanes = z + planes;
+				
+				long now = System.nanoTime();
+				if(loadedPlanes == planeCount || now - lastProgress >= PROGRESS_NANOS) {
+					vd.updateStatistics(accumulator.snapshot());
+					if(listener != null) {
+						listener.planesLoaded(loadedPlanes, planeCount);
+					}
+					lastProgress = now;
+				}
+			}
+		} catch(IOException e) {
+			error = e;
+			if(listener != null) {
+				listener.loadFinished(e);
+			}
+			return;
+		}
+		
+		// The whole volume is in, so empty space skipping and the pyramid can be used from here on
+		vd.setVolumeStore(store, accumulator.snapshot());
+		vd.getMetrics().record("stream", System.nanoTime() - startTime);
+		if(listener != null) {
+			listener.loadFinished(null);
+		}
+	}
+	
+	/*
+	 * Waits for the last plane, throwing the error that stopped loading if there was one
+	 */
+	public VolumeData awaitLoaded() throws IOException, InterruptedException {
+		Thread thread;
+		synchronized(this) {
+			thread = this.thread;
+		}
+		if(thread == null) {
+			throw new IllegalStateException("Loading hasn't been started");
+		}
+		
+		thread.join();
+		if(error != null) {
+			throw error;
+		}
+		return vd;
+	}
+	
+	/*
+	 * The volume being filled, which can be rendered straight away
+	 */
+	public VolumeData getVolumeData() {
+		return vd;
+	}
+	public int getLoadedPlanes() {
+		return loadedPlanes;
+	}
+	public int getTotalPlanes() {
+		return store.getHeight();
+	}
+	public double getProgress() {
+		return (double) loadedPlanes / store.getHeight();
+	}
+	public boolean isLoaded() {
+		return loadedPlanes == store.getHeight() && !vd.isLoading();
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Builds a made up CT-like volume so the code can be exercised without a real scan
+ * The volume is an ellipsoid "head": air outside, a dense shell of bone, and soft tissue
+ * inside with some gentle variation and a little deterministic noise
+ */
+public final class SyntheticVolume {
+	private static final short AIR = 0;
+	private static final short TISSUE = 1000;
+	private static final short BONE = 3000;
+	
+	private SyntheticVolume() {
+	}
+	
+	public static ArrayVolumeStore create(int width, int depth, int height) {
+		ArrayVolumeStore store = new ArrayVolumeStore(width, depth, height);
+		short[] data = store.getData();
+		
+		float cx = width / 2f;
+		float cy = depth / 2f;
+		float cz = height / 2f;
+		
+		int i = 0;
+		for(int z = 0; z < height; z++) {
+			for(int y = 0; y < depth; y++) {
+				for(int x = 0; x < width; x++) {
+					float dx = (x - cx) / (0.45f * width);
+					float dy = (y - cy) / (0.45f * depth);
+					float dz = (z - cz) / (0.45f * height);
+					float r = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+					
+					// A cheap hash of the position gives repeatable noise
+					int noise = ((x * 73856093) ^ (y * 19349663) ^ (z * 83492791)) & 63;
+					
+					int val;
+					if(r > 1) {
+						val = AIR + noise / 4;
+					} else if(r > 0.9f) {
+						val = BONE + noise * 4;
+					} else {
+						val = TISSUE + (int) (200 * Math.sin(x * 0.1) * Math.cos(y * 0.13)) + (int) (300 * r) + noise;
+					}
+					data[i++] = (short) val;
+				}
+			}
+		}
+		return store;
+	}
+}
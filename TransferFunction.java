@@ -0,0 +1,148 @@
+import java.awt.Color;
+
+/*
+ * Gives each value between the min and max of a data set the colour and opacity it is composited with
+ * The function is set by control points, blending linearly between them and holding the first and last
+ * point's colour and opacity past either end
+ *
+ * Opacities are for one voxel's length of ray, getOpacities corrects them for other sample spacings
+ */
+public class TransferFunction {
+	private final short min;
+	private final int lastIndex;
+	
+	// Colour (0 to 255) and opacity (0 to 1) for each value, indexed by val - min
+	private final float[] red;
+	private final float[] green;
+	private final float[] blue;
+	private final float[] opacity;
+	// Every value up to this one is fully transparent, or min - 1 if none are
+	private final int transparentMax;
+	
+	/*
+	 * Builds the function from control points, which must be in increasing order of value
+	 */
+	public TransferFunction(short min, short max, short[] values, Color[] colors, float[] opacities) {
+		if(max < min) {
+			throw new IllegalArgumentException("Max " + max + " is below min " + min);
+		}
+		if(values.length == 0 || values.length != colors.length || values.length != opacities.length) {
+			throw new IllegalArgumentException("Expected the same number of values, colours and opacities, and at least one");
+		}
+		for(int i = 0; i < values.length; i++) {
+			if(i > 0 && values[i] < values[i - 1]) {
+				throw new IllegalArgumentException("Control points must be in increasing order: " + values[i] + " follows " + values[i - 1]);
+			}
+			if(!(opacities[i] >= 0 && opacities[i] <= 1)) {
+				throw new IllegalArgumentException("Opacity must be between 0 and 1: " + opacities[i]);
+			}
+		}
+		
+		this.min = min;
+		lastIndex = max - min;
+		red = new float[lastIndex + 1];
+		green = new float[lastIndex + 1];
+		blue = new float[lastIndex + 1];
+		opacity = new float[lastIndex + 1];
+		
+		int point = 0;
+		for(int i = 0; i <= lastIndex; i++) {
+			int val = min + i;
+			// Move on to the pair of points either side of this value
+			while(point < values.length - 1 && values[point + 1] <= val) {
+				point++;
+			}
+			
+			int next = Math.min(point + 1, values.length - 1);
+			float ratio = 0;
+			if(val > values[point] && next != point) {
+				ratio = (float) (val - values[point]) / (values[next] - values[point]);
+			}
+			
+			red[i] = blend(colors[point].getRed(), colors[next].getRed(), ratio);
+			green[i] = blend(colors[point].getGreen(), colors[next].getGreen(), ratio);
+			blue[i] = blend(colors[point].getBlue(), colors[next].getBlue(), ratio);
+			opacity[i] = blend(opacities[point], opacities[next], ratio);
+		}
+		
+		int transparent = -1;
+		while(transparent < lastIndex && opacity[transparent + 1] == 0) {
+			transparent++;
+		}
+		transparentMax = min + transparent;
+	}
+	
+	/*
+	 * A ramp from transparent black at low up to color at max, where a voxel's length of ray has the given opacity
+	 * Values below low are left out entirely, which for CT data is usually the air around the subject
+	 */
+	public static TransferFunction createRamp(short min, short max, Color color, short low, float maxOpacity) {
+		low = (short) Math.max(min, Math.min(max, low));
+		return new TransferFunction(min, max, new short[] {low, max}, new Color[] {Color.BLACK, color}, new float[] {0, maxOpacity});
+	}
+	
+	/*
+	 * The ramp used until another function is set, hiding the lowest quarter of the range
+	 */
+	public static TransferFunction createDefault(short min, short max, Color color) {
+		return createRamp(min, max, color, (short) (min + (max - min) / 4), 0.1f);
+	}
+	
+	private static float blend(float from, float to, float ratio) {
+		return from + (to - from) * ratio;
+	}
+	
+	/*
+	 * Returns the opacity of every value for samples spacing voxels apart, indexed by val - min
+	 * Each sample then covers spacing voxels of ray, so it is as opaque as that many one voxel samples together
+	 */
+	public float[] getOpacities(float spacing) {
+		float[] corrected = new float[opacity.length];
+		for(int i = 0; i < opacity.length; i++) {
+			corrected[i] = spacing == 1 ? opacity[i] : (float) (1 - Math.pow(1 - opacity[i], spacing));
+		}
+		return corrected;
+	}
+	
+	/*
+	 * Index into the tables for val, clamped as interpolation may give values outside [min, max]
+	 */
+	public int indexOf(short val) {
+		int index = val - min;
+		if(index < 0) {
+			return 0;
+		} else if(index > lastIndex) {
+			return lastIndex;
+		}
+		return index;
+	}
+	
+	public float getRed(int index) {
+		return red[index];
+	}
+	public float getGreen(int index) {
+		return green[index];
+	}
+	public float getBlue(int index) {
+		return blue[index];
+	}
+	public short getMin() {
+		return min;
+	}
+	public short getMax() {
+		return (short) (min + lastIndex);
+	}
+	/*
+	 * Returns true if some values at the bottom of the range are fully transparent
+	 */
+	public boolean hasTransparentValues() {
+		return transparentMax >= min;
+	}
+	/*
+	 * Highest value such that it and every value below it are fully transparent
+	 * Only meaningful if hasTransparentValues is true
+	 */
+	public short getTransparentMax() {
+		return (short) transparentMax;
+	}
+}
@@ -7,6 +7,8 @@ import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.function.BooleanSupplier;
 
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
@@ -18,6 +20,7 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JSlider;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
@@ -32,12 +35,42 @@ public class UserInterface extends JFrame {
 	
 	private static final int DEFAULT_IMAGE_WIDTH = 256;
 	private static final int DEFAULT_IMAGE_HEIGHT = 256;
+	// Rotated images are first drawn with one ray per COARSE_STEP x COARSE_STEP block of pixels
+	private static final int COARSE_STEP = 4;
 	
-	// Declare our BufferedImages to store our images internally
-	private BufferedImage imageX;
-	private BufferedImage imageY;
-	private BufferedImage imageZ;
-	private BufferedImage imageRotated;
+	// Size of the images we render, each render gets a fresh image of this size
+	private int imageWidth = DEFAULT_IMAGE_WIDTH;
+	private int imageHeight = DEFAULT_IMAGE_HEIGHT;
+	
+	// Renders happen off the Event Dispatch Thread, with one queue per image
+	private final RenderScheduler scheduler = new RenderScheduler();
+	private final RenderScheduler.View viewX;
+	private final RenderScheduler.View viewY;
+	private final RenderScheduler.View viewZ;
+	private final RenderScheduler.View viewRotated;
+	private final RenderScheduler.View viewOblique;
+	private final LabelUpdater updaterX;
+	private final LabelUpdater updaterY;
+	private final LabelUpdater updaterZ;
+	private final LabelUpdater updaterRotated;
+	private final LabelUpdater updaterOblique;
+	
+	// Display settings are read by the workers as they colour each frame, and bumped on every change
+	private volatile boolean equalize;
+	private volatile int displayVersion;
+	
+	// Rendered slices are kept so scrubbing back over them is instant, capped with -DsliceCacheMegabytes=n
+	private static final long SLICE_CACHE_BYTES = Long.getLong("sliceCacheMegabytes", 64) << 20;
+	// How many slices ahead of the slider are rendered in the background
+	private static final int PREFETCH_SLICES = 8;
+	
+	// -DbyteVolume=equalized or -DbyteVolume=level,window keeps the volume in 8 bits per voxel, halving its memory
+	private static final String BYTE_VOLUME = System.getProperty("byteVolume");
+	private final SliceCache sliceCache;
+	// Render metrics are always published over JMX, and logged every n seconds with -DmetricsLogSeconds=n
+	private static final long METRICS_LOG_SECONDS = Long.getLong("metricsLogSeconds", 0);
+	// Last slice requested on each axis, to tell which way the slider is moving
+	private final int[] lastSlice = new int[VolumeData.Axis.values().length];
 	
 	// Declare all of our swing components
 	private JLabel title;
@@ -46,6 +79,8 @@ public class UserInterface extends JFrame {
 	private JLabel imageYOut;
 	private JLabel imageZOut;
 	private JLabel imageRotatedOut;
+	private JLabel imageObliqueOut;
+	private JLabel cacheStatus;
 	
 	private JSlider sliderX;
 	private JSlider sliderY;
@@ -55,7 +90,14 @@ public class UserInterface extends JFrame {
 	private JSlider sliderYaw;
 	private JSlider sliderRoll;
 	
+	// The oblique plane's normal as angles about z and up from the xy plane, and its distance from the centre
+	private JSlider sliderAzimuth;
+	private JSlider sliderElevation;
+	private JSlider sliderOffset;
+	
 	private JComboBox<VolumeData.Interpolation> interpMode;
+	private JComboBox<VolumeData.RaySampling> raySampling;
+	private JComboBox<VolumeData.RenderMode> renderMode;
 	
 	private JTextField inputWidth;
 	private JTextField inputHeight;
@@ -65,16 +107,27 @@ public class UserInterface extends JFrame {
 	
 	private JSlider mipThreshold;
 	
+	// The window is given as its centre and width, which is how it's usually adjusted
+	private JSlider windowLevel;
+	private JSlider windowWidth;
+	
 	public UserInterface(VolumeData vd) {
+		this(vd, null);
+	}
+	
+	/*
+	 * Shows the volume while the loader is still reading it, drawing each view again as planes arrive
+	 * The volume is resized once the last plane is in, just as it would have been before showing it
+	 */
+	public UserInterface(StreamingVolumeLoader loader) {
+		this(loader.getVolumeData(), loader);
+	}
+	
+	private UserInterface(VolumeData vd, StreamingVolumeLoader loader) {
 		this.vd = vd;
-		vd.setImageData(vd.resizeData(256, 256, 256));
-		//Use this for testing sampling methods (gives us rougher images)
-		//vd.setImageData(vd.resizeData(64, 64, 64));
-		
-		imageX 			= new BufferedImage(DEFAULT_IMAGE_WIDTH, DEFAULT_IMAGE_HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
-		imageY 			= new BufferedImage(DEFAULT_IMAGE_WIDTH, DEFAULT_IMAGE_HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
-		imageZ 			= new BufferedImage(DEFAULT_IMAGE_WIDTH, DEFAULT_IMAGE_HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
-		imageRotated 	= new BufferedImage(DEFAULT_IMAGE_WIDTH, DEFAULT_IMAGE_HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+		if(loader == null) {
+			prepareVolume();
+		}
 		
 		JPanel mainPanel = new JPanel(new GridBagLayout());
 		
@@ -82,10 +135,35 @@ public class UserInterface extends JFrame {
 		title.setFont(new Font(null, Font.BOLD, 60));
 		title.setHorizontalAlignment(JLabel.CENTER);
 		
-		imageXOut 		= new JLabel(new ImageIcon(imageX));
-		imageYOut 		= new JLabel(new ImageIcon(imageY));
-		imageZOut 		= new JLabel(new ImageIcon(imageZ));
-		imageRotatedOut = new JLabel(new ImageIcon(imageRotated));
+		// Start with blank images so the layout has the right size before the first renders arrive
+		imageXOut 		= new JLabel(new ImageIcon(createImage()));
+		imageYOut 		= new JLabel(new ImageIcon(createImage()));
+		imageZOut 		= new JLabel(new ImageIcon(createImage()));
+		imageRotatedOut = new JLabel(new ImageIcon(createImage()));
+		imageObliqueOut = new JLabel(new ImageIcon(createImage()));
+		
+		sliceCache = new SliceCache(vd, SLICE_CACHE_BYTES);
+		cacheStatus = new JLabel();
+		
+		RenderMetrics metrics = vd.getMetrics();
+		metrics.watchSliceCache(sliceCache);
+		metrics.watchScheduler(scheduler);
+		metrics.register("UserInterface");
+		if(METRICS_LOG_SECONDS > 0) {
+			metrics.startLogging(METRICS_LOG_SECONDS);
+		}
+		
+		// The rotated MIP was never equalized, so it isn't when coloured again either
+		updaterX 		= new LabelUpdater(imageXOut, true);
+		updaterY 		= new LabelUpdater(imageYOut, true);
+		updaterZ 		= new LabelUpdater(imageZOut, true);
+		updaterRotated 	= new LabelUpdater(imageRotatedOut, false);
+		updaterOblique 	= new LabelUpdater(imageObliqueOut, true);
+		viewX 		= scheduler.createView("x slice", updaterX);
+		viewY 		= scheduler.createView("y slice", updaterY);
+		viewZ 		= scheduler.createView("z slice", updaterZ);
+		viewRotated = scheduler.createView("rotated", updaterRotated);
+		viewOblique = scheduler.createView("oblique", updaterOblique);
 		
 		sliderX = new JSlider(0, vd.getDataWidth() - 1);
 		sliderY = new JSlider(0, vd.getDataDepth() - 1);
@@ -95,8 +173,15 @@ public class UserInterface extends JFrame {
 		sliderYaw 	= new JSlider(JSlider.HORIZONTAL, -180, 180, 0);
 		sliderRoll 	= new JSlider(JSlider.HORIZONTAL, -180, 180, 0);
 		
-		JPanel settingsPanel = new JPanel(new GridLayout(6, 2, 0, 5));
+		int halfDiagonal = getHalfDiagonal();
+		sliderAzimuth 	= new JSlider(JSlider.HORIZONTAL, -180, 180, 0);
+		sliderElevation = new JSlider(JSlider.HORIZONTAL, -90, 90, 0);
+		sliderOffset 	= new JSlider(JSlider.HORIZONTAL, -halfDiagonal, halfDiagonal, 0);
+		
+		JPanel settingsPanel = new JPanel(new GridLayout(11, 2, 0, 5));
 		interpMode = new JComboBox<VolumeData.Interpolation>(VolumeData.Interpolation.values());
+		raySampling = new JComboBox<VolumeData.RaySampling>(VolumeData.RaySampling.values());
+		renderMode = new JComboBox<VolumeData.RenderMode>(VolumeData.RenderMode.values());
 		inputWidth = new JTextField();
 		inputWidth.setText(String.valueOf(DEFAULT_IMAGE_WIDTH));
 		inputHeight = new JTextField();
@@ -108,16 +193,30 @@ public class UserInterface extends JFrame {
 		mipThreshold = new JSlider(vd.getMinValue(), vd.getMaxValue(), vd.getMaxValue());
 		//Make the slider smaller so it doesn't make the third sliced image get more space than the other 2
 		mipThreshold.setPreferredSize(new Dimension(1, 1));
+		windowLevel = new JSlider(vd.getMinValue(), vd.getMaxValue(), (vd.getMinValue() + vd.getMaxValue()) / 2);
+		windowWidth = new JSlider(1, Math.max(1, vd.getMaxValue() - vd.getMinValue()), Math.max(1, vd.getMaxValue() - vd.getMinValue()));
+		windowLevel.setPreferredSize(new Dimension(1, 1));
+		windowWidth.setPreferredSize(new Dimension(1, 1));
 		settingsPanel.add(new JLabel("Interpolation Method:"));
 		settingsPanel.add(interpMode);
+		settingsPanel.add(new JLabel("Render Mode:"));
+		settingsPanel.add(renderMode);
 		settingsPanel.add(new JLabel("Width:"));
 		settingsPanel.add(inputWidth);
 		settingsPanel.add(new JLabel("Height:"));
 		settingsPanel.add(inputHeight);
 		settingsPanel.add(new JLabel("Equalize:"));
 		settingsPanel.add(inputEqualize);
+		settingsPanel.add(new JLabel("Window Level:"));
+		settingsPanel.add(windowLevel);
+		settingsPanel.add(new JLabel("Window Width:"));
+		settingsPanel.add(windowWidth);
 		settingsPanel.add(new JLabel("MIP Threshold:"));
 		settingsPanel.add(mipThreshold);
+		settingsPanel.add(new JLabel("MIP Sample Spacing:"));
+		settingsPanel.add(raySampling);
+		settingsPanel.add(new JLabel("Slice Cache:"));
+		settingsPanel.add(cacheStatus);
 		settingsPanel.add(resetButton);
 		settingsPanel.add(updateButton);
 		
@@ -135,6 +234,15 @@ public class UserInterface extends JFrame {
 		sliderYaw.setPaintTicks(true);
 		sliderRoll.setPaintTicks(true);
 		
+		sliderAzimuth.setMajorTickSpacing(180);
+		sliderAzimuth.setMinorTickSpacing(45);
+		sliderElevation.setMajorTickSpacing(90);
+		sliderElevation.setMinorTickSpacing(45);
+		sliderAzimuth.setPaintLabels(true);
+		sliderElevation.setPaintLabels(true);
+		sliderAzimuth.setPaintTicks(true);
+		sliderElevation.setPaintTicks(true);
+		
 		// Set up all of the event handlers
 		UserInputHandler h = new UserInputHandler();
 		sliderX.addChangeListener(h);
@@ -143,6 +251,12 @@ public class UserInterface extends JFrame {
 		sliderPitch.addChangeListener(h);
 		sliderYaw.addChangeListener(h);
 		sliderRoll.addChangeListener(h);
+		sliderAzimuth.addChangeListener(h);
+		sliderElevation.addChangeListener(h);
+		sliderOffset.addChangeListener(h);
+		windowLevel.addChangeListener(h);
+		windowWidth.addChangeListener(h);
+		inputEqualize.addActionListener(h);
 		resetButton.addActionListener(h);
 		updateButton.addActionListener(h);
 		
@@ -195,17 +309,43 @@ public class UserInterface extends JFrame {
 		c.gridheight = 3;
 		mainPanel.add(settingsPanel, c);
 		
+		c.anchor = GridBagConstraints.CENTER;
+		c.gridx = 0;
+		c.gridy = 6;
+		c.gridheight = 3;
+		mainPanel.add(imageObliqueOut, c);
+		
+		c.anchor = GridBagConstraints.LINE_START;
+		c.gridheight = 1;
+		c.gridx = 1;
+		mainPanel.add(sliderAzimuth, c);
+		c.gridy = 7;
+		mainPanel.add(sliderElevation, c);
+		c.gridy = 8;
+		mainPanel.add(sliderOffset, c);
+		
 		// Update the images so they have some values initially
-		imageX = vd.sliceImage(imageX, VolumeData.Axis.X, sliderX.getValue(), getInterpolationMode(), inputEqualize.isSelected());
-		imageY = vd.sliceImage(imageY, VolumeData.Axis.Y, sliderY.getValue(), getInterpolationMode(), inputEqualize.isSelected());
-		imageZ = vd.sliceImage(imageZ, VolumeData.Axis.Z, sliderZ.getValue(), getInterpolationMode(), inputEqualize.isSelected());
-		imageRotated = vd.getRotatedImage(imageRotated, 0, 0, 0, getInterpolationMode());
+		redrawImages();
 		
 		setContentPane(mainPanel);
 		setTitle("Volume Data Visualisation");
 		setDefaultCloseOperation(EXIT_ON_CLOSE);
 		pack();
 		setVisible(true);
+		
+		if(loader != null) {
+			title.setText("Loading Volume");
+			loader.start(new LoadListener());
+		}
+	}
+	
+	private void prepareVolume() {
+		vd.setVolumeStore(vd.resizeVolume(256, 256, 256));
+		if(BYTE_VOLUME != null) {
+			vd.setVolumeStore(vd.quantizeVolume(BYTE_VOLUME));
+		}
+		//Use this for testing sampling methods (gives us rougher images)
+		//vd.setVolumeStore(vd.resizeVolume(64, 64, 64));
 	}
 	
 	//Work out the interpolation method selected
@@ -214,44 +354,289 @@ public class UserInterface extends JFrame {
 		return interpMode.getItemAt(interpMode.getSelectedIndex());
 	}
 	
+	// The oblique plane can move far enough either way to leave the volume from any angle
+	private int getHalfDiagonal() {
+		return (int) Math.ceil(Math.sqrt((double) vd.getDataWidth() * vd.getDataWidth()
+				+ (double) vd.getDataDepth() * vd.getDataDepth() + (double) vd.getDataHeight() * vd.getDataHeight()) / 2);
+	}
+	
+	private BufferedImage createImage() {
+		return new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_3BYTE_BGR);
+	}
+	
+	/*
+	 * Queues a render of a slice, reading the current settings now as they can only be read on the Event Dispatch Thread
+	 * Slices further along in the direction the slider is moving are then rendered into the cache in the background
+	 */
+	private void requestSlice(RenderScheduler.View view, final VolumeData.Axis axis, JSlider slider) {
+		final int slice = slider.getValue();
+		final int sliceCount = slider.getMaximum() + 1;
+		final int width = imageWidth;
+		final int height = imageHeight;
+		final VolumeData.Interpolation interpolation = getInterpolationMode();
+		final LabelUpdater updater = view == viewX ? updaterX : view == viewY ? updaterY : updaterZ;
+		
+		final int direction = slice < lastSlice[axis.ordinal()] ? -1 : 1;
+		lastSlice[axis.ordinal()] = slice;
+		
+		view.submit(new RenderScheduler.RenderJob() {
+			@Override
+			public BufferedImage render(RenderScheduler.Ticket ticket) {
+				RenderBuffer values = sliceCache.getSlice(axis, slice, width, height, interpolation);
+				sliceCache.prefetch(axis, slice, direction, PREFETCH_SLICES, sliceCount, width, height, interpolation);
+				return updater.colourise(values);
+			}
+		});
+	}
+	
+	private void requestRotated() {
+		final BufferedImage image = createImage();
+		final RenderBuffer values = new RenderBuffer(imageWidth, imageHeight);
+		final double angleP = Math.toRadians(sliderPitch.getValue());
+		final double angleQ = Math.toRadians(sliderYaw.getValue());
+		final double angleR = Math.toRadians(sliderRoll.getValue());
+		final VolumeData.Interpolation interpolation = getInterpolationMode();
+		
+		// While the sliders are moving only the coarse pass is drawn, the full image follows once they settle
+		final boolean adjusting = sliderPitch.getValueIsAdjusting() || sliderYaw.getValueIsAdjusting() || sliderRoll.getValueIsAdjusting();
+		
+		viewRotated.submit(new RenderScheduler.RenderJob() {
+			@Override
+			public BufferedImage render(final RenderScheduler.Ticket ticket) {
+				BooleanSupplier superseded = new BooleanSupplier() {
+					@Override
+					public boolean getAsBoolean() {
+						return ticket.isSuperseded();
+					}
+				};
+				
+				// MIP rays end in a value that can be kept for colouring again, composited ones only in a colour
+				boolean keepValues = vd.getRenderMode() == VolumeData.RenderMode.MIP;
+				if(!keepValues) {
+					updaterRotated.values = null;
+				}
+				
+				// Each pass halves the step, reusing the rays cast by the pass before it
+				int previousStep = 0;
+				for(int step = COARSE_STEP; step >= 1; step /= 2) {
+					boolean finished = keepValues
+							? vd.getRotatedValues(values, angleP, angleQ, angleR, interpolation, step, previousStep, superseded)
+							: vd.getRotatedImage(image, angleP, angleQ, angleR, interpolation, step, previousStep, superseded);
+					if(!finished) {
+						// The angles changed part way through, so give up on this image
+						return null;
+					}
+					
+					if(adjusting || step == 1) {
+						return keepValues ? updaterRotated.colourise(values) : image;
+					}
+					// Show a copy, as the next pass carries on writing into the values or image
+					ticket.publish(keepValues ? vd.colourise(values, createImage(values), false) : copyImage(image));
+					previousStep = step;
+				}
+				return image;
+			}
+		});
+	}
+	
+	private void requestOblique() {
+		final RenderBuffer values = new RenderBuffer(imageWidth, imageHeight);
+		double azimuth = Math.toRadians(sliderAzimuth.getValue());
+		double elevation = Math.toRadians(sliderElevation.getValue());
+		final double normalX = Math.cos(elevation) * Math.cos(azimuth);
+		final double normalY = Math.cos(elevation) * Math.sin(azimuth);
+		final double normalZ = Math.sin(elevation);
+		final double offset = sliderOffset.getValue();
+		final VolumeData.Interpolation interpolation = getInterpolationMode();
+		
+		viewOblique.submit(new RenderScheduler.RenderJob() {
+			@Override
+			public BufferedImage render(RenderScheduler.Ticket ticket) {
+				vd.obliqueSliceValues(values, normalX, normalY, normalZ, offset, interpolation);
+				return updaterOblique.colourise(values);
+			}
+		});
+	}
+	
+	/*
+	 * Applies the window sliders and colours every view again from the values it was drawn from
+	 * Nothing is rendered, so this keeps up with the sliders even on large images
+	 */
+	private void updateDisplay() {
+		int low = windowLevel.getValue() - windowWidth.getValue() / 2;
+		int high = low + windowWidth.getValue();
+		vd.setWindow((short) Math.max(low, Short.MIN_VALUE), (short) Math.min(high, Short.MAX_VALUE));
+		equalize = inputEqualize.isSelected();
+		displayVersion++;
+		
+		updaterX.recolour();
+		updaterY.recolour();
+		updaterZ.recolour();
+		updaterRotated.recolour();
+		updaterOblique.recolour();
+	}
+	
+	private static BufferedImage createImage(RenderBuffer values) {
+		return new BufferedImage(values.getWidth(), values.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+	}
+	
+	/*
+	 * Fits the sliders to the volume's size and range after it has changed, and draws every view again
+	 * Sliders at the top of their range, such as the MIP threshold, stay at the top of the new one
+	 */
+	private void volumeChanged() {
+		boolean fullWindow = windowWidth.getValue() == windowWidth.getMaximum();
+		int min = vd.getMinValue();
+		int max = vd.getMaxValue();
+		int halfDiagonal = getHalfDiagonal();
+		
+		sliceCache.clear();
+		setRange(sliderX, 0, vd.getDataWidth() - 1);
+		setRange(sliderY, 0, vd.getDataDepth() - 1);
+		setRange(sliderZ, 0, vd.getDataHeight() - 1);
+		setRange(sliderOffset, -halfDiagonal, halfDiagonal);
+		setRange(mipThreshold, min, max);
+		setRange(windowWidth, 1, Math.max(1, max - min));
+		setRange(windowLevel, min, max);
+		if(fullWindow) {
+			windowLevel.setValue((min + max) / 2);
+		}
+		
+		// The volume's window is reset whenever its store is, so put the sliders' back
+		updateDisplay();
+		redrawImages();
+	}
+	
+	private static void setRange(JSlider slider, int minimum, int maximum) {
+		int value = slider.getValue() == slider.getMaximum() ? maximum : Math.max(minimum, Math.min(maximum, slider.getValue()));
+		slider.getModel().setRangeProperties(value, 0, minimum, maximum, false);
+	}
+	
+	private static BufferedImage copyImage(BufferedImage image) {
+		BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+		byte[] source = VolumeData.getImageData(image);
+		System.arraycopy(source, 0, VolumeData.getImageData(copy), 0, source.length);
+		return copy;
+	}
+	
+	/*
+	 * Shows each finished frame in its label, and keeps the values the last one was coloured from
+	 * so display changes can colour them again without rendering
+	 */
+	private final class LabelUpdater implements RenderScheduler.FrameListener {
+		private final JLabel label;
+		private final boolean equalizable;
+		
+		// Not written to once set here, null when the view was drawn straight to colours
+		private volatile RenderBuffer values;
+		
+		private LabelUpdater(JLabel label, boolean equalizable) {
+			this.label = label;
+			this.equalizable = equalizable;
+		}
+		
+		/*
+		 * Keeps the values and colours them with the current display settings, from a worker
+		 * If the settings change part way through the frame is coloured again, as recolour may
+		 * have run on the Event Dispatch Thread before these values were kept
+		 */
+		private BufferedImage colourise(RenderBuffer values) {
+			this.values = values;
+			BufferedImage image = createImage(values);
+			int version;
+			do {
+				version = displayVersion;
+				vd.colourise(values, image, equalize && equalizable);
+			} while(version != displayVersion);
+			return image;
+		}
+		
+		// Runs on the Event Dispatch Thread
+		private void recolour() {
+			RenderBuffer values = this.values;
+			if(values != null) {
+				label.setIcon(new ImageIcon(vd.colourise(values, createImage(values), equalize && equalizable)));
+			}
+		}
+		
+		@Override
+		public void frameReady(BufferedImage image) {
+			label.setIcon(new ImageIcon(image));
+			cacheStatus.setText(String.format("%.0f%% hits, %d MB", 100 * sliceCache.getHitRate(), sliceCache.getBytes() >> 20));
+		}
+	}
+	
+	// Follows a StreamingVolumeLoader, showing its progress in the title
+	private final class LoadListener implements StreamingVolumeLoader.Listener {
+		@Override
+		public void planesLoaded(final int loaded, final int total) {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					title.setText(String.format("Loading Volume %d%%", 100L * loaded / total));
+					volumeChanged();
+				}
+			});
+		}
+		
+		@Override
+		public void loadFinished(final IOException error) {
+			if(error == null) {
+				// Still on the loading thread, as resizing takes a while
+				prepareVolume();
+			}
+			
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					title.setText("Volume Data Visualisation");
+					volumeChanged();
+					if(error != null) {
+						JOptionPane.showMessageDialog(UserInterface.this, "The volume could only be partly loaded: " + error.getMessage());
+					}
+				}
+			});
+		}
+	}
+	
 	private final class UserInputHandler implements ChangeListener, ActionListener {
 		@Override
 		public void stateChanged(ChangeEvent e) {
 			if(e.getSource() == sliderPitch || e.getSource() == sliderYaw || e.getSource() == sliderRoll) {
-				// Only update the rotated image when the sliders are all released
-				// As rendering the rotated image is quite costly
-				if(!sliderPitch.getValueIsAdjusting() && !sliderYaw.getValueIsAdjusting() && !sliderRoll.getValueIsAdjusting()) {
-					imageRotated = vd.getRotatedImage(imageRotated, 
-							Math.toRadians(sliderPitch.getValue()), 
-							Math.toRadians(sliderYaw.getValue()), 
-							Math.toRadians(sliderRoll.getValue()),
-							getInterpolationMode());
-					imageRotatedOut.setIcon(new ImageIcon(imageRotated));
-				}
+				// Requests made while an earlier one is rendering replace each other, so only the latest angles get drawn
+				requestRotated();
+			} else if(e.getSource() == sliderAzimuth || e.getSource() == sliderElevation || e.getSource() == sliderOffset) {
+				requestOblique();
 			} else if(e.getSource() == sliderX) {
-				imageX = vd.sliceImage(imageX, VolumeData.Axis.X, sliderX.getValue(), getInterpolationMode(), inputEqualize.isSelected());
-				imageXOut.setIcon(new ImageIcon(imageX));
+				requestSlice(viewX, VolumeData.Axis.X, sliderX);
 			} else if(e.getSource() == sliderY) {
-				imageY = vd.sliceImage(imageY, VolumeData.Axis.Y, sliderY.getValue(), getInterpolationMode(), inputEqualize.isSelected());
-				imageYOut.setIcon(new ImageIcon(imageY));
+				requestSlice(viewY, VolumeData.Axis.Y, sliderY);
 			} else if(e.getSource() == sliderZ) {
-				imageZ = vd.sliceImage(imageZ, VolumeData.Axis.Z, sliderZ.getValue(), getInterpolationMode(), inputEqualize.isSelected());
-				imageZOut.setIcon(new ImageIcon(imageZ));
+				requestSlice(viewZ, VolumeData.Axis.Z, sliderZ);
+			} else if(e.getSource() == windowLevel || e.getSource() == windowWidth) {
+				updateDisplay();
 			}
 		}
-
+		
 		@Override
 		public void actionPerformed(ActionEvent e) {
 			if(e.getSource() == resetButton) {
 				interpMode.setSelectedIndex(0);
+				raySampling.setSelectedIndex(0);
+				renderMode.setSelectedIndex(0);
 				inputWidth.setText(String.valueOf(DEFAULT_IMAGE_WIDTH));
 				inputHeight.setText(String.valueOf(DEFAULT_IMAGE_HEIGHT));
 				inputEqualize.setSelected(false);
 				mipThreshold.setValue(mipThreshold.getMaximum());
+				windowLevel.setValue((windowLevel.getMinimum() + windowLevel.getMaximum()) / 2);
+				windowWidth.setValue(windowWidth.getMaximum());
+				updateDisplay();
 				
 				if(resizeImages()) {
 					redrawImages();
 				}
+			} else if(e.getSource() == inputEqualize) {
+				updateDisplay();
 			} else if(e.getSource() == updateButton) {
 				//Only redraw the images if there wasn't a problem resizing them
 				if(resizeImages()) {
@@ -278,28 +663,21 @@ public class UserInterface extends JFrame {
 			return false;
 		}
 		
-		imageX 			= new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-		imageY 			= new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-		imageZ 			= new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-		imageRotated 	= new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		imageWidth = width;
+		imageHeight = height;
 		
-		//Set the new mip threshold too
+		//Set the new mip threshold, sampling and render mode too
 		vd.setMIPThreshold((short) mipThreshold.getValue());
+		vd.setRaySampling(raySampling.getItemAt(raySampling.getSelectedIndex()));
+		vd.setRenderMode(renderMode.getItemAt(renderMode.getSelectedIndex()));
 		
 		return true;
 	}
 	private void redrawImages() {
-		imageX = vd.sliceImage(imageX, VolumeData.Axis.X, sliderX.getValue(), getInterpolationMode(), inputEqualize.isSelected());
-		imageXOut.setIcon(new ImageIcon(imageX));
-		imageY = vd.sliceImage(imageY, VolumeData.Axis.Y, sliderY.getValue(), getInterpolationMode(), inputEqualize.isSelected());
-		imageYOut.setIcon(new ImageIcon(imageY));
-		imageZ = vd.sliceImage(imageZ, VolumeData.Axis.Z, sliderZ.getValue(), getInterpolationMode(), inputEqualize.isSelected());
-		imageZOut.setIcon(new ImageIcon(imageZ));
-		imageRotated = vd.getRotatedImage(imageRotated, 
-				Math.toRadians(sliderPitch.getValue()), 
-				Math.toRadians(sliderYaw.getValue()), 
-				Math.toRadians(sliderRoll.getValue()),
-				getInterpolationMode());
-		imageRotatedOut.setIcon(new ImageIcon(imageRotated));
+		requestSlice(viewX, VolumeData.Axis.X, sliderX);
+		requestSlice(viewY, VolumeData.Axis.Y, sliderY);
+		requestSlice(viewZ, VolumeData.Axis.Z, sliderZ);
+		requestRotated();
+		requestOblique();
 	}
-}
+}
\ No newline at end of file
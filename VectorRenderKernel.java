@@ -0,0 +1,358 @@
+import java.nio.ShortBuffer;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ * Renders several samples per instruction with the incubating Vector API
+ * Only load this through RenderKernels, as it needs --add-modules jdk.incubator.vector
+ * 
+ * Every operation is done in the same order and precision as the scalar code, so the
+ * results match it exactly. Ray positions are still worked out one at a time, as they
+ * have to be rounded from double just like the scalar code, and so are the voxel reads,
+ * as gathers of shorts aren't accelerated. That also lets the voxels come from a ShortBuffer
+ * as easily as from an array. The vector stages only pass arrays between
+ * each other so that nothing is boxed when the JIT doesn't inline them, and floats are
+ * turned into ints with a rounding bias as vector F2I conversions aren't compiled on x86
+ * before JDK 18.
+ */
+public class VectorRenderKernel implements RenderKernel {
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	private static final int LANES = FLOATS.length();
+	
+	// Rays are sampled a chunk at a time, small enough that a ray which hits the threshold or reaches
+	// an empty block doesn't do much more work than the scalar loop
+	private static final int CHUNK = LANES;
+	
+	// Adding this to a positive float below it leaves the float rounded to a whole number, held in the low bits
+	private static final float ROUNDING_BIAS = 1 << 23;
+	private static final int ROUNDING_BIAS_BITS = Float.floatToRawIntBits(ROUNDING_BIAS);
+	
+	private static final float[] IOTA = new float[LANES];
+	static {
+		for(int i = 0; i < LANES; i++) {
+			IOTA[i] = i;
+		}
+	}
+	
+	/*
+	 * Working arrays for one chunk of a ray, one set per render thread
+	 */
+	private static final class Scratch {
+		final float[] x = new float[CHUNK];
+		final float[] y = new float[CHUNK];
+		final float[] z = new float[CHUNK];
+		final float[] valid = new float[CHUNK];
+		final float[] xRatio = new float[CHUNK];
+		final float[] yRatio = new float[CHUNK];
+		final float[] zRatio = new float[CHUNK];
+		final int[] offsets = new int[8 * CHUNK];
+		final float[] corners = new float[8 * CHUNK];
+		final float[] samples = new float[CHUNK];
+		final int[] row = new int[LANES];
+	}
+	
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+	
+	@Override
+	public short castMipRay(short[] data, int width, int depth, int height, double[][] matrixN,
+			float scaledY, float scaledZ, boolean trilinear, short min, short threshold, MinMaxGrid grid) {
+		return castRay(data, null, width, depth, height, matrixN, scaledY, scaledZ, trilinear, min, threshold, grid);
+	}
+	
+	@Override
+	public short castMipRay(ShortBuffer data, int width, int depth, int height, double[][] matrixN,
+			float scaledY, float scaledZ, boolean trilinear, short min, short threshold, MinMaxGrid grid) {
+		return castRay(null, data, width, depth, height, matrixN, scaledY, scaledZ, trilinear, min, threshold, grid);
+	}
+	
+	/*
+	 * Casts a ray through either the array or the buffer, whichever isn't null
+	 */
+	private short castRay(short[] array, ShortBuffer buffer, int width, int depth, int height, double[][] matrixN,
+			float scaledY, float scaledZ, boolean trilinear, short min, short threshold, MinMaxGrid grid) {
+		Scratch s = scratch.get();
+		
+		// The parts of each coordinate that don't change along the ray, added in the same order as the scalar code
+		double yPartX = matrixN[0][1] * scaledY;
+		double yPartY = matrixN[1][1] * scaledY;
+		double yPartZ = matrixN[2][1] * scaledY;
+		double zPartX = matrixN[0][2] * scaledZ;
+		double zPartY = matrixN[1][2] * scaledZ;
+		double zPartZ = matrixN[2][2] * scaledZ;
+		
+		float dirX = (float) matrixN[0][0];
+		float dirY = (float) matrixN[1][0];
+		float dirZ = (float) matrixN[2][0];
+		
+		short dataMax = Short.MIN_VALUE;
+		int end = width / 2;
+		int start = -(width / 2);
+		while(start < end) {
+			if(grid != null) {
+				// Nothing further along the ray can beat the max
+				if(dataMax >= grid.getMaxBound()) {
+					return dataMax;
+				}
+				
+				float newX = (float) (matrixN[0][0] * start + yPartX + zPartX) + (width / 2);
+				float newY = (float) (matrixN[1][0] * start + yPartY + zPartY) + (depth / 2);
+				float newZ = (float) (matrixN[2][0] * start + yPartZ + zPartZ) + (height / 2);
+				if(newX >= 0 && newY >= 0 && newZ >= 0 && newX < width && newY < depth && newZ < height) {
+					// The block this sample is in can't beat the max either, so it is skipped along with the rest
+					int skip = grid.getSkippableSamples(newX, newY, newZ, dirX, dirY, dirZ, dataMax);
+					if(skip > 0) {
+						start += skip + 1;
+						continue;
+					}
+				}
+			}
+			
+			int count = Math.min(CHUNK, end - start);
+			
+			for(int i = 0; i < count; i++) {
+				int x = start + i;
+				s.x[i] = (float) (matrixN[0][0] * x + yPartX + zPartX) + (width / 2);
+				s.y[i] = (float) (matrixN[1][0] * x + yPartY + zPartY) + (depth / 2);
+				s.z[i] = (float) (matrixN[2][0] * x + yPartZ + zPartZ) + (height / 2);
+			}
+			
+			if(trilinear) {
+				trilinearOffsets(s, count, width, depth, height);
+				gather(array, buffer, s.offsets, s.corners, 8 * roundUp(count));
+				trilinearSamples(s, count, min);
+			} else {
+				nearestOffsets(s, count, width, depth, height);
+				gather(array, buffer, s.offsets, s.corners, roundUp(count));
+				for(int i = 0; i < count; i++) {
+					s.samples[i] = s.valid[i] != 0 ? s.corners[i] : min;
+				}
+			}
+			
+			// Same as the scalar loop, which stops at the first sample over the threshold
+			for(int i = 0; i < count; i++) {
+				short val = (short) s.samples[i];
+				if(val > dataMax) {
+					dataMax = val;
+					if(val > threshold) {
+						return dataMax;
+					}
+				}
+			}
+			start += count;
+		}
+		
+		return dataMax;
+	}
+	
+	private static int roundUp(int count) {
+		return ((count + LANES - 1) / LANES) * LANES;
+	}
+	
+	/*
+	 * Flags which positions are inside the volume and works out the index of the voxel each one reads
+	 */
+	private static void nearestOffsets(Scratch s, int count, int width, int depth, int height) {
+		for(int i = 0; i < count; i += LANES) {
+			VectorMask<Float> lanes = FLOATS.indexInRange(i, count);
+			FloatVector x = FloatVector.fromArray(FLOATS, s.x, i, lanes);
+			FloatVector y = FloatVector.fromArray(FLOATS, s.y, i, lanes);
+			FloatVector z = FloatVector.fromArray(FLOATS, s.z, i, lanes);
+			
+			VectorMask<Float> inside = inside(x, y, z, width, depth, height).and(lanes);
+			FloatVector.zero(FLOATS).blend(1, inside).intoArray(s.valid, i);
+			
+			// Anything outside reads the first voxel instead, which is thrown away later
+			VectorMask<Float> outside = inside.not();
+			IntVector xi = toInt(floor(x.blend(0, outside)));
+			IntVector yi = toInt(floor(y.blend(0, outside)));
+			IntVector zi = toInt(floor(z.blend(0, outside)));
+			zi.mul(depth).add(yi).mul(width).add(xi).intoArray(s.offsets, i);
+		}
+	}
+	
+	private static VectorMask<Float> inside(FloatVector x, FloatVector y, FloatVector z, int width, int depth, int height) {
+		return x.compare(VectorOperators.GE, 0)
+				.and(y.compare(VectorOperators.GE, 0))
+				.and(z.compare(VectorOperators.GE, 0))
+				.and(x.compare(VectorOperators.LT, width))
+				.and(y.compare(VectorOperators.LT, depth))
+				.and(z.compare(VectorOperators.LT, height));
+	}
+	
+	/*
+	 * First half of VolumeData.getTrilinearInterpValue for every position, working out the
+	 * ratios and the index of each of the 8 corners
+	 */
+	private static void trilinearOffsets(Scratch s, int count, int width, int depth, int height) {
+		for(int i = 0; i < count; i += LANES) {
+			VectorMask<Float> lanes = FLOATS.indexInRange(i, count);
+			FloatVector x = FloatVector.fromArray(FLOATS, s.x, i, lanes);
+			FloatVector y = FloatVector.fromArray(FLOATS, s.y, i, lanes);
+			FloatVector z = FloatVector.fromArray(FLOATS, s.z, i, lanes);
+			
+			// Samples on the border are ignored and given the minimum value
+			VectorMask<Float> border = x.compare(VectorOperators.EQ, 0)
+					.or(y.compare(VectorOperators.EQ, 0))
+					.or(z.compare(VectorOperators.EQ, 0))
+					.or(x.compare(VectorOperators.GT, width - 1))
+					.or(y.compare(VectorOperators.GT, depth - 1))
+					.or(z.compare(VectorOperators.GT, height - 1));
+			VectorMask<Float> read = inside(x, y, z, width, depth, height).andNot(border).and(lanes);
+			FloatVector.zero(FLOATS).blend(1, read).intoArray(s.valid, i);
+			
+			// Anything that isn't read samples around (1, 1, 1) instead, which is thrown away later
+			VectorMask<Float> skipped = read.not();
+			x = x.blend(1, skipped);
+			y = y.blend(1, skipped);
+			z = z.blend(1, skipped);
+			
+			FloatVector x2 = ceil(x);
+			FloatVector y2 = ceil(y);
+			FloatVector z2 = ceil(z);
+			FloatVector x1 = x2.sub(1);
+			FloatVector y1 = y2.sub(1);
+			FloatVector z1 = z2.sub(1);
+			
+			x.sub(x1).div(x2.sub(x1)).intoArray(s.xRatio, i);
+			y.sub(y1).div(y2.sub(y1)).intoArray(s.yRatio, i);
+			z.sub(z1).div(z2.sub(z1)).intoArray(s.zRatio, i);
+			
+			IntVector ix1 = toInt(x1);
+			IntVector ix2 = toInt(x2);
+			IntVector row11 = rowOffset(y1, z1, width, depth);
+			IntVector row21 = rowOffset(y2, z1, width, depth);
+			IntVector row12 = rowOffset(y1, z2, width, depth);
+			IntVector row22 = rowOffset(y2, z2, width, depth);
+			
+			// Corners are stored a vector at a time in the order trilinearSamples reads them
+			int base = 8 * i;
+			row11.add(ix1).intoArray(s.offsets, base);
+			row11.add(ix2).intoArray(s.offsets, base + LANES);
+			row21.add(ix1).intoArray(s.offsets, base + 2 * LANES);
+			row21.add(ix2).intoArray(s.offsets, base + 3 * LANES);
+			row12.add(ix1).intoArray(s.offsets, base + 4 * LANES);
+			row22.add(ix1).intoArray(s.offsets, base + 5 * LANES);
+			row12.add(ix2).intoArray(s.offsets, base + 6 * LANES);
+			row22.add(ix2).intoArray(s.offsets, base + 7 * LANES);
+		}
+	}
+	
+	private static IntVector rowOffset(FloatVector y, FloatVector z, int width, int depth) {
+		IntVector yi = toInt(y);
+		IntVector zi = toInt(z);
+		return zi.mul(depth).add(yi).mul(width);
+	}
+	
+	/*
+	 * Math.ceil and Math.floor for positive values below 2^23, which every position in a volume is
+	 */
+	private static FloatVector ceil(FloatVector v) {
+		FloatVector rounded = v.add(ROUNDING_BIAS).sub(ROUNDING_BIAS);
+		return rounded.add(1, rounded.compare(VectorOperators.LT, v));
+	}
+	private static FloatVector floor(FloatVector v) {
+		FloatVector rounded = v.add(ROUNDING_BIAS).sub(ROUNDING_BIAS);
+		return rounded.sub(1, rounded.compare(VectorOperators.GT, v));
+	}
+	
+	/*
+	 * Turns whole numbers between 0 and 2^23 into ints
+	 */
+	private static IntVector toInt(FloatVector wholeNumbers) {
+		return wholeNumbers.add(ROUNDING_BIAS).reinterpretAsInts().sub(ROUNDING_BIAS_BITS);
+	}
+	
+	/*
+	 * Second half of VolumeData.getTrilinearInterpValue, blending the corners that were read
+	 */
+	private static void trilinearSamples(Scratch s, int count, short min) {
+		for(int i = 0; i < count; i += LANES) {
+			int base = 8 * i;
+			FloatVector x1y1z1 = FloatVector.fromArray(FLOATS, s.corners, base);
+			FloatVector x2y1z1 = FloatVector.fromArray(FLOATS, s.corners, base + LANES);
+			FloatVector x1y2z1 = FloatVector.fromArray(FLOATS, s.corners, base + 2 * LANES);
+			FloatVector x2y2z1 = FloatVector.fromArray(FLOATS, s.corners, base + 3 * LANES);
+			FloatVector x1y1z2 = FloatVector.fromArray(FLOATS, s.corners, base + 4 * LANES);
+			FloatVector x1y2z2 = FloatVector.fromArray(FLOATS, s.corners, base + 5 * LANES);
+			FloatVector x2y1z2 = FloatVector.fromArray(FLOATS, s.corners, base + 6 * LANES);
+			FloatVector x2y2z2 = FloatVector.fromArray(FLOATS, s.corners, base + 7 * LANES);
+			
+			FloatVector xRatio = FloatVector.fromArray(FLOATS, s.xRatio, i);
+			FloatVector yRatio = FloatVector.fromArray(FLOATS, s.yRatio, i);
+			FloatVector zRatio = FloatVector.fromArray(FLOATS, s.zRatio, i);
+			FloatVector xInv = xRatio.neg().add(1);
+			FloatVector yInv = yRatio.neg().add(1);
+			FloatVector zInv = zRatio.neg().add(1);
+			
+			FloatVector c00 = x1y1z1.mul(xInv).add(x2y1z1.mul(xRatio));
+			FloatVector c10 = x1y2z1.mul(xInv).add(x2y2z1.mul(xRatio));
+			FloatVector c01 = x1y1z2.mul(xInv).add(x2y1z2.mul(xRatio));
+			FloatVector c11 = x1y2z2.mul(xInv).add(x2y2z2.mul(xRatio));
+			
+			FloatVector c0 = c00.mul(yInv).add(c10.mul(yRatio));
+			FloatVector c1 = c01.mul(yInv).add(c11.mul(yRatio));
+			
+			FloatVector c = c0.mul(zInv).add(c1.mul(zRatio));
+			
+			// The (short) cast of the scalar code is left to castMipRay
+			VectorMask<Float> skipped = FloatVector.fromArray(FLOATS, s.valid, i).compare(VectorOperators.EQ, 0);
+			c.blend(min, skipped).intoArray(s.samples, i);
+		}
+	}
+	
+	/*
+	 * Reads the voxel at each offset from the array, or from the buffer if there is no array
+	 */
+	private static void gather(short[] array, ShortBuffer buffer, int[] offsets, float[] values, int count) {
+		if(array != null) {
+			for(int i = 0; i < count; i++) {
+				values[i] = array[offsets[i]];
+			}
+		} else {
+			for(int i = 0; i < count; i++) {
+				values[i] = buffer.get(offsets[i]);
+			}
+		}
+	}
+	
+	@Override
+	public void sampleNearestRow(short[] data, int base, int stride, float ratio, int count, short[] out) {
+		sampleRow(data, null, base, stride, ratio, count, out);
+	}
+	
+	@Override
+	public void sampleNearestRow(ShortBuffer data, int base, int stride, float ratio, int count, short[] out) {
+		sampleRow(null, data, base, stride, ratio, count, out);
+	}
+	
+	private void sampleRow(short[] array, ShortBuffer buffer, int base, int stride, float ratio, int count, short[] out) {
+		int[] row = scratch.get().row;
+		FloatVector iota = FloatVector.fromArray(FLOATS, IOTA, 0);
+		
+		for(int x = 0; x < count; x += LANES) {
+			// x stays well inside the range floats hold exactly, so this matches (int)((float)x * ratio)
+			FloatVector scaled = iota.add(x).mul(ratio);
+			toInt(floor(scaled)).mul(stride).add(base).intoArray(row, 0);
+			
+			int lanes = Math.min(LANES, count - x);
+			if(array != null) {
+				for(int i = 0; i < lanes; i++) {
+					out[x + i] = array[row[i]];
+				}
+			} else {
+				for(int i = 0; i < lanes; i++) {
+					out[x + i] = buffer.get(row[i]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,437 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/*
+ * Times the VolumeData hot paths on a synthetic volume and writes the results as JSON
+ * The JSON follows the layout of JMH's -rf json output so the same tools can track it
+ * 
+ * Usage: java VolumeBenchmark [--size WxDxH] [--image-sizes 256,512] [--warmup n] [--iterations n]
+ *                             [--iteration-ms n] [--threads n] [--filter regex] [--json file]
+ */
+public class VolumeBenchmark {
+	// Something that is timed, returning a value so the JIT can't throw the work away
+	protected interface Operation {
+		Object run() throws Exception;
+	}
+	
+	private static final int TRILINEAR_SAMPLES = 1 << 20;
+	
+	// Results are folded into this so nothing looks unused
+	private static volatile int sink;
+	
+	private int width = 256;
+	private int depth = 256;
+	private int height = 113;
+	private int[] imageSizes = {256, 512};
+	private int warmupIterations = 2;
+	private int measurementIterations = 5;
+	private long iterationMillis = 1000;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private Pattern filter = Pattern.compile(".*");
+	private String jsonFile = "volume-benchmark.json";
+	
+	private final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+	
+	public static void main(String[] args) throws Exception {
+		VolumeBenchmark bench = new VolumeBenchmark();
+		bench.parseArgs(args);
+		bench.run();
+	}
+	
+	private void parseArgs(String[] args) {
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + arg);
+			}
+			String value = args[++i];
+			
+			if(arg.equals("--size")) {
+				String[] dims = value.split("x");
+				width = Integer.parseInt(dims[0]);
+				depth = Integer.parseInt(dims.length > 1 ? dims[1] : dims[0]);
+				height = Integer.parseInt(dims.length > 2 ? dims[2] : dims[0]);
+			} else if(arg.equals("--image-sizes")) {
+				String[] sizes = value.split(",");
+				imageSizes = new int[sizes.length];
+				for(int j = 0; j < sizes.length; j++) {
+					imageSizes[j] = Integer.parseInt(sizes[j]);
+				}
+			} else if(arg.equals("--warmup")) {
+				warmupIterations = Integer.parseInt(value);
+			} else if(arg.equals("--iterations")) {
+				measurementIterations = Integer.parseInt(value);
+			} else if(arg.equals("--iteration-ms")) {
+				iterationMillis = Long.parseLong(value);
+			} else if(arg.equals("--threads")) {
+				threads = Integer.parseInt(value);
+			} else if(arg.equals("--filter")) {
+				filter = Pattern.compile(value);
+			} else if(arg.equals("--json")) {
+				jsonFile = value;
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+	}
+	
+	private void run() throws Exception {
+		System.out.println("Building " + width + "x" + depth + "x" + height + " synthetic volume");
+		final VolumeData vd = new VolumeData(SyntheticVolume.create(width, depth, height));
+		vd.setRenderThreads(threads);
+		
+		addBenchmarks(vd);
+		
+		List<Benchmark> selected = new ArrayList<Benchmark>();
+		for(Benchmark b : benchmarks) {
+			if(filter.matcher(b.getLabel()).find()) {
+				selected.add(b);
+			}
+		}
+		
+		for(Benchmark b : selected) {
+			b.measure();
+			System.out.println(String.format(Locale.ROOT, "%-70s %12.3f +- %8.3f ms/op", b.getLabel(), b.getScore(), b.getScoreError()));
+		}
+		
+		writeJson(selected);
+		System.out.println("Results written to " + jsonFile);
+	}
+	
+	/*
+	 * Registers every benchmark, new hot paths should be added here
+	 */
+	protected void addBenchmarks(final VolumeData vd) {
+		// The Vector API kernels are compared against the scalar loops when the JVM can load them
+		boolean[] kernels = vd.setVectorKernel(true) ? new boolean[] {false, true} : new boolean[] {false};
+		vd.setVectorKernel(false);
+		
+		for(final int size : imageSizes) {
+			for(final VolumeData.Axis axis : VolumeData.Axis.values()) {
+				for(final VolumeData.Interpolation interpolation : VolumeData.Interpolation.values()) {
+					// Only nearest neighbour slices have a vector kernel
+					boolean[] sliceKernels = interpolation == VolumeData.Interpolation.NearestNeighbour ? kernels : new boolean[] {false};
+					for(final boolean vector : sliceKernels) {
+						final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+						final int slice = sliceCount(vd, axis) / 2;
+						add("sliceImage", params("axis", axis, "interpolation", interpolation.name(), "kernel", kernelName(vector), "size", size), new Operation() {
+							@Override
+							public Object run() {
+								vd.setVectorKernel(vector);
+								return vd.sliceImage(image, axis, slice, interpolation, false);
+							}
+						});
+					}
+				}
+			}
+		}
+		
+		// An oblique cut through the middle, leaning away from all three axes
+		for(final int size : imageSizes) {
+			for(final VolumeData.Interpolation interpolation : VolumeData.Interpolation.values()) {
+				final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+				add("obliqueSliceImage", params("normal", "1,0.5,0.7", "interpolation", interpolation.name(), "size", size), new Operation() {
+					@Override
+					public Object run() {
+						vd.setVectorKernel(false);
+						return vd.obliqueSliceImage(image, 1, 0.5, 0.7, 0, interpolation, false);
+					}
+				});
+			}
+		}
+		
+		// Colouring a kept buffer again, which is all a change of colour, window or equalization costs
+		for(final int size : imageSizes) {
+			for(final boolean equalize : new boolean[] {false, true}) {
+				final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+				final RenderBuffer buffer = vd.sliceValues(new RenderBuffer(size, size), VolumeData.Axis.Z, sliceCount(vd, VolumeData.Axis.Z) / 2,
+						VolumeData.Interpolation.Linear);
+				add("colourise", params("equalize", equalize, "size", size), new Operation() {
+					@Override
+					public Object run() {
+						return vd.colourise(buffer, image, equalize);
+					}
+				});
+			}
+		}
+		
+		int[][] angles = {{0, 0, 0}, {30, 45, 60}, {90, 0, 0}};
+		for(final int size : imageSizes) {
+			for(final int[] angle : angles) {
+				for(final VolumeData.Interpolation interpolation : VolumeData.Interpolation.values()) {
+					for(final boolean vector : kernels) {
+						final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+						add("getRotatedImage", params("angles", angle[0] + "," + angle[1] + "," + angle[2], "interpolation", interpolation.name(), "kernel", kernelName(vector), "size", size), new Operation() {
+							@Override
+							public Object run() {
+								vd.setVectorKernel(vector);
+								return vd.getRotatedImage(image, Math.toRadians(angle[0]), Math.toRadians(angle[1]), Math.toRadians(angle[2]), interpolation);
+							}
+						});
+					}
+				}
+			}
+		}
+		
+		// Ray marching at each spacing, against the Fixed sampling timed above
+		for(final int size : imageSizes) {
+			for(final VolumeData.RaySampling sampling : VolumeData.RaySampling.values()) {
+				if(sampling == VolumeData.RaySampling.Fixed) {
+					continue;
+				}
+				final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+				add("getRotatedImage", params("angles", "30,45,60", "interpolation", VolumeData.Interpolation.Linear.name(), "sampling", sampling.name(), "size", size), new Operation() {
+					@Override
+					public Object run() {
+						vd.setVectorKernel(false);
+						vd.setRaySampling(sampling);
+						try {
+							return vd.getRotatedImage(image, Math.toRadians(30), Math.toRadians(45), Math.toRadians(60), VolumeData.Interpolation.Linear);
+						} finally {
+							vd.setRaySampling(VolumeData.RaySampling.Fixed);
+						}
+					}
+				});
+			}
+		}
+		
+		// Compositing with and without stopping rays once they are opaque
+		for(final int size : imageSizes) {
+			for(final float cutoff : new float[] {0.95f, 1}) {
+				final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+				add("getRotatedImage", params("angles", "30,45,60", "interpolation", VolumeData.Interpolation.Linear.name(), "mode", VolumeData.RenderMode.Composite.name(), "cutoff", cutoff, "size", size), new Operation() {
+					@Override
+					public Object run() {
+						vd.setVectorKernel(false);
+						vd.setRenderMode(VolumeData.RenderMode.Composite);
+						vd.setOpacityCutoff(cutoff);
+						try {
+							return vd.getRotatedImage(image, Math.toRadians(30), Math.toRadians(45), Math.toRadians(60), VolumeData.Interpolation.Linear);
+						} finally {
+							vd.setRenderMode(VolumeData.RenderMode.MIP);
+						}
+					}
+				});
+			}
+		}
+		
+		// Spread the sample positions through the volume with a fixed seed so runs are comparable
+		final float[] positions = new float[3 * TRILINEAR_SAMPLES];
+		java.util.Random random = new java.util.Random(42);
+		for(int i = 0; i < TRILINEAR_SAMPLES; i++) {
+			positions[3 * i] = random.nextFloat() * (vd.getDataWidth() - 1);
+			positions[3 * i + 1] = random.nextFloat() * (vd.getDataDepth() - 1);
+			positions[3 * i + 2] = random.nextFloat() * (vd.getDataHeight() - 1);
+		}
+		add("getTrilinearInterpValue", params("samples", TRILINEAR_SAMPLES), new Operation() {
+			@Override
+			public Object run() {
+				int sum = 0;
+				for(int i = 0; i < positions.length; i += 3) {
+					sum += vd.getTrilinearInterpValue(positions[i], positions[i + 1], positions[i + 2]);
+				}
+				return sum;
+			}
+		});
+		
+		int[][] targets = {{width / 2, depth / 2, height / 2}, {256, 256, 256}};
+		for(final int[] target : targets) {
+			add("resizeData", params("target", target[0] + "x" + target[1] + "x" + target[2]), new Operation() {
+				@Override
+				public Object run() {
+					return vd.resizeData(target[0], target[1], target[2]);
+				}
+			});
+		}
+		
+		final RenderPool pool = new RenderPool(threads);
+		add("VolumeStatistics.compute", params(), new Operation() {
+			@Override
+			public Object run() {
+				return VolumeStatistics.compute(vd.getVolumeStore(), pool);
+			}
+		});
+		
+		// Read throughput of the compressed format, the file is only written if these are selected
+		final CompressedVolumeFile[] compressed = new CompressedVolumeFile[1];
+		add("CompressedVolumeFile.readVolume", params("chunkPlanes", CompressedVolumeFile.DEFAULT_CHUNK_PLANES), new Operation() {
+			@Override
+			public Object run() throws IOException {
+				return openCompressed(vd, compressed, pool).readVolume(pool);
+			}
+		});
+		add("CompressedVolumeFile.readSlab", params("chunkPlanes", CompressedVolumeFile.DEFAULT_CHUNK_PLANES), new Operation() {
+			@Override
+			public Object run() throws IOException {
+				CompressedVolumeFile file = openCompressed(vd, compressed, pool);
+				return file.readSlab(file.getChunkCount() / 2);
+			}
+		});
+	}
+	
+	private static CompressedVolumeFile openCompressed(VolumeData vd, CompressedVolumeFile[] compressed, RenderPool pool) throws IOException {
+		if(compressed[0] == null) {
+			File file = File.createTempFile("volume-benchmark", CompressedVolumeFile.EXTENSION);
+			file.deleteOnExit();
+			CompressedVolumeFile.write(vd.getVolumeStore(), file.getPath(), CompressedVolumeFile.DEFAULT_CHUNK_PLANES, Deflater.DEFAULT_COMPRESSION, pool);
+			compressed[0] = new CompressedVolumeFile(file.getPath());
+		}
+		return compressed[0];
+	}
+	
+	private static String kernelName(boolean vector) {
+		return vector ? "vector" : "scalar";
+	}
+	
+	protected void add(String name, Map<String, String> params, Operation op) {
+		benchmarks.add(new Benchmark(name, params, op));
+	}
+	
+	protected static Map<String, String> params(Object... keysAndValues) {
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		for(int i = 0; i < keysAndValues.length; i += 2) {
+			params.put(String.valueOf(keysAndValues[i]), String.valueOf(keysAndValues[i + 1]));
+		}
+		return params;
+	}
+	
+	private static int sliceCount(VolumeData vd, VolumeData.Axis axis) {
+		switch(axis) {
+		case X:
+			return vd.getDataWidth();
+		case Y:
+			return vd.getDataDepth();
+		default:
+			return vd.getDataHeight();
+		}
+	}
+	
+	private void writeJson(List<Benchmark> results) throws IOException {
+		try(Writer out = new FileWriter(jsonFile)) {
+			out.write("[\n");
+			for(int i = 0; i < results.size(); i++) {
+				results.get(i).writeJson(out);
+				out.write(i + 1 < results.size() ? ",\n" : "\n");
+			}
+			out.write("]\n");
+		}
+	}
+	
+	private final class Benchmark {
+		private final String name;
+		private final Map<String, String> params;
+		private final Operation op;
+		
+		// Milliseconds per operation for each measurement iteration
+		private final double[] scores = new double[measurementIterations];
+		
+		private Benchmark(String name, Map<String, String> params, Operation op) {
+			this.name = name;
+			this.params = params;
+			this.op = op;
+		}
+		
+		private void measure() throws Exception {
+			for(int i = 0; i < warmupIterations; i++) {
+				iteration();
+			}
+			for(int i = 0; i < measurementIterations; i++) {
+				scores[i] = iteration();
+			}
+		}
+		
+		/*
+		 * Runs the operation until the iteration time is used up, at least once, and returns ms per operation
+		 */
+		private double iteration() throws Exception {
+			long start = System.nanoTime();
+			long deadline = start + iterationMillis * 1000000L;
+			int ops = 0;
+			long now;
+			do {
+				sink += System.identityHashCode(op.run());
+				ops++;
+				now = System.nanoTime();
+			} while(now < deadline);
+			return (now - start) / 1e6 / ops;
+		}
+		
+		private double getScore() {
+			double sum = 0;
+			for(double s : scores) {
+				sum += s;
+			}
+			return sum / scores.length;
+		}
+		
+		/*
+		 * Half width of the 99.9% confidence interval, using the normal approximation
+		 */
+		private double getScoreError() {
+			if(scores.length < 2) {
+				return Double.NaN;
+			}
+			double mean = getScore();
+			double squares = 0;
+			for(double s : scores) {
+				squares += (s - mean) * (s - mean);
+			}
+			double stdDev = Math.sqrt(squares / (scores.length - 1));
+			return 3.291 * stdDev / Math.sqrt(scores.length);
+		}
+		
+		private String getLabel() {
+			StringBuilder label = new StringBuilder(name);
+			for(Map.Entry<String, String> p : params.entrySet()) {
+				label.append(' ').append(p.getKey()).append('=').append(p.getValue());
+			}
+			return label.toString();
+		}
+		
+		private void writeJson(Writer out) throws IOException {
+			double score = getScore();
+			double error = getScoreError();
+			
+			out.write("  {\n");
+			out.write("    \"benchmark\": \"VolumeBenchmark." + name + "\",\n");
+			out.write("    \"mode\": \"avgt\",\n");
+			out.write("    \"threads\": 1,\n");
+			out.write("    \"renderThreads\": " + threads + ",\n");
+			out.write("    \"volume\": \"" + width + "x" + depth + "x" + height + "\",\n");
+			out.write("    \"warmupIterations\": " + warmupIterations + ",\n");
+			out.write("    \"measurementIterations\": " + measurementIterations + ",\n");
+			out.write("    \"params\": {");
+			int n = 0;
+			for(Map.Entry<String, String> p : params.entrySet()) {
+				out.write((n++ > 0 ? ", " : "") + "\"" + p.getKey() + "\": \"" + p.getValue() + "\"");
+			}
+			out.write("},\n");
+			out.write("    \"primaryMetric\": {\n");
+			out.write("      \"score\": " + number(score) + ",\n");
+			out.write("      \"scoreError\": " + number(error) + ",\n");
+			out.write("      \"scoreConfidence\": [" + number(score - error) + ", " + number(score + error) + "],\n");
+			out.write("      \"scoreUnit\": \"ms/op\",\n");
+			out.write("      \"rawData\": [[");
+			for(int i = 0; i < scores.length; i++) {
+				out.write((i > 0 ? ", " : "") + number(scores[i]));
+			}
+			out.write("]]\n");
+			out.write("    }\n");
+			out.write("  }");
+		}
+	}
+	
+	private static String number(double d) {
+		return Double.isNaN(d) ? "\"NaN\"" : String.format(Locale.ROOT, "%.6f", d);
+	}
+}
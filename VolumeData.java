@@ -3,11 +3,13 @@ import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
 import java.awt.image.WritableRaster;
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
 
 /*
  * Name: Nicholas Betsworth
@@ -33,26 +35,111 @@ public class VolumeData {
 			return stringVal;
 		}
 	}
+	//Used to determine how rays through the rotated volume are turned into pixels
+	public enum RenderMode {
+		MIP("Maximum Intensity"), Composite("Composite");
+		
+		private final String stringVal;
+		private RenderMode(String stringVal) {
+			this.stringVal = stringVal;
+		}
+		
+		public String toString() {
+			return stringVal;
+		}
+	}
+	//Used to determine how far apart the samples along a MIP ray are
+	public enum RaySampling {
+		Fixed("Fixed", 0), HalfVoxel("0.5 Voxels", 0.5f), OneVoxel("1 Voxel", 1), TwoVoxels("2 Voxels", 2);
+		
+		private final String stringVal;
+		// Distance between samples when ray marching, or 0 for one sample per voxel of the volume's width
+		private final float step;
+		private RaySampling(String stringVal, float step) {
+			this.stringVal = stringVal;
+			this.step = step;
+		}
+		
+		public float getStep() {
+			return step;
+		}
+		public String toString() {
+			return stringVal;
+		}
+	}
 	
-	private static final int DEFAULT_DATA_WIDTH = 256;
-	private static final int DEFAULT_DATA_HEIGHT = 113;
-	private static final int DEFAULT_DATA_DEPTH = 256;
+	static final int DEFAULT_DATA_WIDTH = 256;
+	static final int DEFAULT_DATA_HEIGHT = 113;
+	static final int DEFAULT_DATA_DEPTH = 256;
 	
 	// Store the dimensions of our data
 	private int dataWidth;
 	private int dataHeight;
 	private int dataDepth;
 	
-	// Array to store all of the image data
-	private short[][][] imageData;
+	// Stores all of the image data, either on the heap or off it (run with -DoffHeapVolume=true)
+	private static final boolean OFF_HEAP_VOLUME = Boolean.getBoolean("offHeapVolume");
+	private VolumeStore store;
+	// Renders hold this for reading, so setVolumeStore can't swap the store out from under a render in flight
+	private final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+	// Set while a StreamingVolumeLoader is still filling the store
+	private volatile boolean loading;
 	// Stores the minimum and maximum values found in the data set
 	private short min;
 	private short max;
-	private short mipThreshold;
+	// Set from the user interface while renders run on other threads
+	private volatile short mipThreshold;
+	private volatile RaySampling raySampling = RaySampling.Fixed;
+	private volatile RenderMode renderMode = RenderMode.MIP;
+	// Colours and opacities for composited images, reset to a ramp in the volume's colour when the volume changes
+	private volatile TransferFunction transferFunction;
+	// Set once setTransferFunction has been called, so updated statistics don't replace the user's function
+	private boolean customTransferFunction;
+	// Composited rays stop once they are this opaque, as anything further along barely shows
+	private volatile float opacityCutoff = 0.95f;
 	
 	private Color color;
 	
+	// Gathered in one pass whenever the volume changes
+	private VolumeStatistics statistics;
 	private short[] histogramMapping;
+	// Values the colour is spread across, the whole range until setWindow narrows it
+	private volatile short windowLow;
+	private volatile short windowHigh;
+	// Rebuilt whenever the colour, window, min, max or histogram changes
+	private volatile ColorLookupTable colorTable;
+	// Held by the setters and by statistics updates, so a loader thread and the user interface changing
+	// the colour, window, threshold or transfer function at the same time can't lose each other's changes
+	// The range itself only changes under the store lock too, so renders always see a consistent min and max
+	private final Object settingsLock = new Object();
+	
+	// Copies of the volume halved again and again, built the first time an image small enough to use them is rendered
+	// levels[0] is this volume, and levels of the pyramid have a parent but no levels of their own
+	private final VolumeData parent;
+	private VolumeData[] levels;
+	// Length of one of this volume's voxels in voxels of the full volume
+	private final int voxelSize;
+	private volatile boolean levelOfDetail = true;
+	
+	// Lets MIP rays skip blocks of the volume that cannot raise their maximum
+	private MinMaxGrid minMaxGrid;
+	private boolean emptySpaceSkipping = true;
+	private volatile double lastSkipRatio;
+	
+	// Timings of every render, shared with the levels of the pyramid so their samples are counted too
+	private RenderMetrics metrics;
+	
+	// Threads used to render images, this can be capped with -DrenderThreads=n on shared machines
+	private static final int DEFAULT_RENDER_THREADS = Integer.getInteger("renderThreads", Runtime.getRuntime().availableProcessors());
+	private volatile RenderPool renderPool;
+	
+	// Vector API kernels for volumes held in a flat array or buffer, turned on with -DvectorKernel=true
+	// They need the JVM to be run with --add-modules jdk.incubator.vector, otherwise the scalar loops are used
+	private volatile RenderKernel kernel = Boolean.getBoolean("vectorKernel") ? RenderKernels.getVectorKernel() : null;
+	// Set once it has been logged that the kernels can't read this volume's store
+	private volatile boolean kernelUnusableLogged;
+	
+	private static final Logger LOG = Logger.getLogger(VolumeData.class.getName());
 	
 	public VolumeData(String filename) throws IOException {
 		this(filename, DEFAULT_DATA_WIDTH, DEFAULT_DATA_HEIGHT, DEFAULT_DATA_DEPTH);
@@ -62,84 +149,323 @@ public class VolumeData {
 	 * Allow different sized sets of volume data to be used by our class
 	 */
 	public VolumeData(String filename, int dataWidth, int dataHeight, int dataDepth) throws IOException {
-		this.dataWidth = dataWidth;
-		this.dataHeight = dataHeight;
-		this.dataDepth = dataDepth;
-		
-		imageData = new short[dataHeight][dataDepth][dataWidth];
-		
-		// Initialise all variables and load in data
-		// Read in the volume data
-		File f = new File(filename);
-		
-		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
-		
-		min = Short.MAX_VALUE;
-		max = Short.MIN_VALUE;
-		
-		for(int z = 0; z < dataHeight; z++) {
-			for(int y = 0; y < dataDepth; y++) {
-				for(int x = 0; x < dataWidth; x++) {
-					/*
-					 * & 0xFF because there is no unsigned data types in java
-					 * This masks out extra bits, leaving us with just 8
-					 */
-					short c1 = (short) (in.readByte() & 0xFF);
-					short c2 = (short) (in.readByte() & 0xFF);
-					
-					// Reverse the order so c2 is first by bit shifting left and then joining c1 on
-					short c3 = (short) ((c2 << 8) | c1);
-					
-					// Update the min and max values if necessary
-					if(c3 > max) {
-						max = c3;
-					}
-					if(c3 < min) {
-						min = c3;
-					}
-					
-					// Store this value in the appropriate array position
-					imageData[z][y][x] = c3;
-				}
-			}
-		}
+		this(filename, dataWidth, dataHeight, dataDepth, 0);
+	}
+	
+	/*
+	 * Opens a volume whose data starts headerOffset bytes into the file
+	 * The file is memory mapped rather than read in, so nothing is copied onto the heap
+	 */
+	public VolumeData(String filename, int dataWidth, int dataHeight, int dataDepth, long headerOffset) throws IOException {
+		this(MappedVolumeLoader.map(filename, dataWidth, dataDepth, dataHeight, headerOffset));
+	}
+	
+	/*
+	 * Wraps a volume that has already been loaded
+	 */
+	public VolumeData(VolumeStore store) {
+		this();
+		setVolumeStore(store);
 		
-		in.close();
+		//Set the threshold to maximum by default
+		mipThreshold = max;
+	}
+	
+	/*
+	 * Decodes a compressed volume file on the render threads, taking its statistics from the header
+	 */
+	public VolumeData(CompressedVolumeFile file) throws IOException {
+		this();
+		long startTime = System.nanoTime();
+		ArrayVolumeStore store = file.readVolume(renderPool);
+		long decodeNanos = System.nanoTime() - startTime;
+		setVolumeStore(store, file.getStatistics());
+		metrics.record("decode", decodeNanos);
+		
+		mipThreshold = max;
+	}
+	
+	/*
+	 * Shows a store that is still being filled a plane at a time, such as by StreamingVolumeLoader, using the
+	 * statistics of the planes loaded so far until updateStatistics replaces them
+	 * Empty space skipping and the pyramid would be built from planes that haven't arrived, so neither is used
+	 * until setVolumeStore is given the finished store
+	 */
+	public static VolumeData whileLoading(VolumeStore store, VolumeStatistics statistics) {
+		VolumeData vd = new VolumeData();
+		vd.loading = true;
+		vd.store = store;
+		vd.dataHeight = store.getHeight();
+		vd.dataDepth = store.getDepth();
+		vd.dataWidth = store.getWidth();
+		vd.windowLow = statistics.getMin();
+		vd.windowHigh = statistics.getMax();
+		vd.applyStatistics(statistics);
+		vd.mipThreshold = vd.max;
+		vd.metrics.watchStore(store);
+		return vd;
+	}
+	
+	private VolumeData() {
+		parent = null;
+		voxelSize = 1;
+		metrics = new RenderMetrics();
+		renderPool = new RenderPool(Math.max(1, DEFAULT_RENDER_THREADS));
 		//You can change the colour if you wish
 		//color = new Color(0, 255, 50);
 		color = new Color(255,255,255);
-		
-		//Set the threshold to maximum by default
-		mipThreshold = max;
-		histogramMapping = getEqualizationMapping();
+	}
+	
+	/*
+	 * Creates a level of the parent's pyramid, which is coloured and rendered with the parent's settings
+	 */
+	private VolumeData(VolumeData parent, VolumeStore store, int voxelSize) {
+		this.parent = parent;
+		this.voxelSize = voxelSize;
+		renderPool = parent.renderPool;
+		color = parent.color;
+		// The level is coloured with the parent's statistics, so it doesn't need a histogram pass of its own
+		setVolumeStore(store, parent.statistics);
+		inheritSettings();
 	}
 	
 	public BufferedImage getRotatedImage(BufferedImage image, double angleP, double angleQ, double angleR, Interpolation interpolation) {
-		//long startTime = System.currentTimeMillis();
-		double matrixP[][] = {	{1, 0, 0},
-								{0, Math.cos(angleP), -Math.sin(angleP)},
-								{0, Math.sin(angleP), Math.cos(angleP)}};
-		double matrixQ[][] = {	{Math.cos(angleQ), 0, Math.sin(angleQ)},
-								{0, 1, 0},
-								{-Math.sin(angleQ), 0, Math.cos(angleQ)}};
-		double matrixR[][] = {	{Math.cos(angleR), -Math.sin(angleR), 0},
-								{Math.sin(angleR), Math.cos(angleR), 0},
-								{0, 0, 1}};
+		getRotatedImage(image, angleP, angleQ, angleR, interpolation, 1, 0, null);
+		return image;
+	}
+	
+	/*
+	 * Renders with the given MIP threshold instead of the one set on this volume, so threads sharing
+	 * the volume can each render with their own threshold without changing it for the others
+	 */
+	public BufferedImage getRotatedImage(BufferedImage image, double angleP, double angleQ, double angleR, Interpolation interpolation, short threshold) {
+		long startTime = System.nanoTime();
+		renderRotated(image, null, angleP, angleQ, angleR, interpolation, threshold, 1, 0, null);
+		recordRotated(interpolation, 1, startTime);
+		return image;
+	}
+	
+	/*
+	 * Renders one pass of a progressive rotated image
+	 * Only every step-th ray across and down is cast, and each one is copied over the step x step block it starts
+	 * Rays on the previousStep grid are left alone, as an earlier pass has already cast them, so passes of 4, 2
+	 * then 1 refine the same image to exactly the full render for the cost of a single full render
+	 * Returns false without finishing the image if cancelled (which may be null) returns true part way through
+	 */
+	public boolean getRotatedImage(BufferedImage image, double angleP, double angleQ, double angleR, Interpolation interpolation,
+			int step, int previousStep, BooleanSupplier cancelled) {
+		long startTime = System.nanoTime();
+		boolean finished = renderRotated(image, null, angleP, angleQ, angleR, interpolation, mipThreshold, step, previousStep, cancelled);
+		
+		// Cancelled passes are counted as dropped frames by the scheduler instead
+		if(finished) {
+			recordRotated(interpolation, step, startTime);
+		}
+		return finished;
+	}
+	
+	/*
+	 * Renders one pass of a progressive MIP like getRotatedImage, but keeps each ray's max in the buffer
+	 * rather than its colour, so colourise can colour it again without casting any rays
+	 * Composited rays end in a colour rather than a value, so this only works in MIP mode
+	 */
+	public boolean getRotatedValues(RenderBuffer buffer, double angleP, double angleQ, double angleR, Interpolation interpolation,
+			int step, int previousStep, BooleanSupplier cancelled) {
+		if(renderMode != RenderMode.MIP) {
+			throw new IllegalStateException("Only MIP renders have values to keep, not " + renderMode);
+		}
+		
+		long startTime = System.nanoTime();
+		boolean finished = renderRotated(null, buffer, angleP, angleQ, angleR, interpolation, mipThreshold, step, previousStep, cancelled);
+		if(finished) {
+			recordRotated(interpolation, step, startTime);
+		}
+		return finished;
+	}
+	
+	private void recordRotated(Interpolation interpolation, int step, long startTime) {
+		if(metrics != null) {
+			metrics.record("rotated " + renderMode.name() + " " + interpolation.name() + (step > 1 ? " step " + step : ""), System.nanoTime() - startTime);
+		}
+	}
+	
+	/*
+	 * Casts the rays of one pass into either the image's colours or the buffer's values, whichever isn't null
+	 */
+	private boolean renderRotated(BufferedImage image, RenderBuffer buffer, double angleP, double angleQ, double angleR, Interpolation interpolation,
+			short threshold, int step, int previousStep, BooleanSupplier cancelled) {
+		storeLock.readLock().lock();
+		try {
+			return castRotated(image, buffer, angleP, angleQ, angleR, interpolation, threshold, step, previousStep, cancelled);
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+	
+	private boolean castRotated(BufferedImage image, RenderBuffer buffer, double angleP, double angleQ, double angleR, Interpolation interpolation,
+			short threshold, int step, int previousStep, BooleanSupplier cancelled) {
+		if(step < 1 || (previousStep != 0 && previousStep % step != 0)) {
+			throw new IllegalArgumentException("Previous step " + previousStep + " is not a multiple of step " + step);
+		}
+		int w = image != null ? image.getWidth() : buffer.getWidth();
+		int h = image != null ? image.getHeight() : buffer.getHeight();
+		
+		// Small images are cast through a halved copy of the volume instead
+		int level = levelFor(Math.min((float)dataWidth / (float)w, (float)dataHeight / (float)h));
+		if(level > 0) {
+			VolumeData coarser = getLevel(level);
+			boolean finished = coarser.renderRotated(image, buffer, angleP, angleQ, angleR, interpolation, threshold, step, previousStep, cancelled);
+			lastSkipRatio = coarser.lastSkipRatio;
+			return finished;
+		}
+		
+		final RotatedRender render = new RotatedRender();
+		render.thisImageData = image != null ? getImageData(image) : null;
+		render.values = buffer != null ? buffer.getValues() : null;
+		render.w = w;
+		render.h = h;
+		render.matrixN = getRotationMatrix(angleP, angleQ, angleR);
+		render.interpolation = interpolation;
+		render.threshold = threshold;
+		render.grid = emptySpaceSkipping ? minMaxGrid : null;
+		render.rayStep = raySampling.getStep();
+		render.step = step;
+		render.previousStep = previousStep;
+		render.cancelled = cancelled;
+		if(renderMode == RenderMode.Composite) {
+			// Composited rays are always marched, one voxel apart unless a spacing is chosen
+			render.transfer = transferFunction;
+			render.rayStep = render.rayStep > 0 ? render.rayStep : 1;
+			render.opacities = render.transfer.getOpacities(render.rayStep * voxelSize);
+			render.opacityCutoff = opacityCutoff;
+		}
+		
+		// Each row of the output image is independent, so bands of rows are cast on separate threads
+		renderPool.forEachBand(render.h, new RenderPool.BandRenderer() {
+			@Override
+			public void render(int start, int end) {
+				renderRotatedRows(render, start, end);
+			}
+		});
 		
-		double matrixN[][] = multiply(multiply(matrixP, matrixQ), matrixR);
+		if(render.isCancelled()) {
+			return false;
+		}
+		
+		long total = render.samples.sum() + render.skipped.sum();
+		lastSkipRatio = total == 0 ? 0 : (double) render.skipped.sum() / total;
+		if(metrics != null) {
+			metrics.addSamples(render.samples.sum(), render.skipped.sum());
+		}
+		
+		if(step > 1 && render.values != null) {
+			fillBlocks(render.values, render.w, render.h, step);
+		} else if(step > 1) {
+			fillBlocks(render.thisImageData, render.w, render.h, step);
+		}
+		return true;
+	}
+	
+	/*
+	 * Everything a band of rows needs to cast its part of a rotated image
+	 */
+	private static final class RotatedRender {
+		// Rays are written to one of these, colours into the image or values into the buffer
+		byte[] thisImageData;
+		short[] values;
+		int w;
+		int h;
+		double[][] matrixN;
+		Interpolation interpolation;
+		short threshold;
+		MinMaxGrid grid;
+		float rayStep;
+		int step;
+		int previousStep;
+		BooleanSupplier cancelled;
+		// Only set when compositing, with the opacities corrected for the ray step
+		TransferFunction transfer;
+		float[] opacities;
+		float opacityCutoff;
 		
-		byte[] thisImageData = getImageData(image);
+		final LongAdder samples = new LongAdder();
+		final LongAdder skipped = new LongAdder();
 		
-		int w = image.getWidth();
-		int h = image.getHeight();
+		boolean isCancelled() {
+			return cancelled != null && cancelled.getAsBoolean();
+		}
+	}
+	
+	/*
+	 * Casts a ray through the volume for every pixel of the render's grid in rows [startZ, endZ) of the rotated image
+	 */
+	private void renderRotatedRows(RotatedRender render, int startZ, int endZ) {
+		byte[] thisImageData = render.thisImageData;
+		int w = render.w;
+		int h = render.h;
+		double[][] matrixN = render.matrixN;
+		Interpolation interpolation = render.interpolation;
+		MinMaxGrid grid = render.grid;
+		int step = render.step;
+		int previousStep = render.previousStep;
+		short threshold = render.threshold;
 		
+		ColorLookupTable lut = colorTable;
 		float wr = (float)dataWidth / (float)w;
 		float hr = (float)dataHeight / (float)h;
 		
-		for(int z = 0; z < h; z++) {
-			for(int y = 0; y < w; y++) {
+		// How far through the volume one step along the ray moves
+		float dirX = (float) matrixN[0][0];
+		float dirY = (float) matrixN[1][0];
+		float dirZ = (float) matrixN[2][0];
+		
+		RenderKernel kernel = kernelFor(store);
+		short[] kernelArray = kernel != null && store instanceof ArrayVolumeStore ? ((ArrayVolumeStore) store).getData() : null;
+		ShortBuffer kernelBuffer = kernel != null && store instanceof BufferVolumeStore ? ((BufferVolumeStore) store).getBuffer() : null;
+		boolean trilinear = interpolation == Interpolation.Linear && !(wr == 1 && hr == 1);
+		// Samples taken and skipped by marched rays, and where the ray being marched enters the volume
+		long[] marched = new long[2];
+		float[] ray = new float[6];
+		long bandSamples = 0;
+		long bandSkipped = 0;
+		
+		// Start on the first row of the band that lies on the grid
+		for(int z = ((startZ + step - 1) / step) * step; z < endZ; z += step) {
+			if(render.isCancelled()) {
+				return;
+			}
+			
+			for(int y = 0; y < w; y += step) {
+				if(previousStep > 0 && z % previousStep == 0 && y % previousStep == 0) {
+					continue;
+				}
+				
+				if(render.transfer != null) {
+					compositeRay(render, (y * wr) - (dataDepth / 2), (z * hr) - (dataHeight / 2), trilinear, ray, marched, thisImageData, (3 * y) + (3 * z * w));
+					continue;
+				}
+				
+				if(render.rayStep > 0) {
+					short rayMax = marchRay(matrixN, (y * wr) - (dataDepth / 2), (z * hr) - (dataHeight / 2), render.rayStep, threshold, trilinear, grid, ray, marched);
+					writeRay(render, lut, rayMax, y + z * w);
+					continue;
+				}
+				
+				if(kernel != null) {
+					// The kernel casts the whole ray, skipping empty space in chunks rather than sample by sample
+					float scaledY = (y * wr) - (dataDepth / 2);
+					float scaledZ = (z * hr) - (dataHeight / 2);
+					short rayMax = kernelArray != null
+							? kernel.castMipRay(kernelArray, dataWidth, dataDepth, dataHeight, matrixN, scaledY, scaledZ, trilinear, min, threshold, grid)
+							: kernel.castMipRay(kernelBuffer, dataWidth, dataDepth, dataHeight, matrixN, scaledY, scaledZ, trilinear, min, threshold, grid);
+					bandSamples += dataWidth;
+					writeRay(render, lut, rayMax, y + z * w);
+					continue;
+				}
+				
 				short dataMax = Short.MIN_VALUE;
 				for(int x = -(dataWidth / 2); x < (dataWidth / 2); x++) {
+					bandSamples++;
 					float scaledZ = (z * hr) - (dataHeight / 2);
 					float scaledY = (y * wr) - (dataDepth / 2);
 					
@@ -152,13 +478,14 @@ public class VolumeData {
 					newZ += (dataHeight / 2);
 					
 					short val;
+					boolean inside = !(newX < 0 || newY < 0 || newZ < 0 ||
+							newX >= dataWidth || newY >= dataDepth || newZ >= dataHeight);
 					
-					if(newX < 0 || newY < 0 || newZ < 0 ||
-							newX >= dataWidth || newY >= dataDepth || newZ >= dataHeight) {
+					if(!inside) {
 						val = min;
 					} else {
 						if(interpolation == Interpolation.NearestNeighbour || (wr == 1 && hr == 1)) {
-							val = imageData[(int)newZ][(int)newY][(int)newX];
+							val = store.get((int)newX, (int)newY, (int)newZ);
 						} else if(interpolation == Interpolation.Linear) {
 							val = getTrilinearInterpValue(newX, newY, newZ);
 						} else {
@@ -170,31 +497,326 @@ public class VolumeData {
 						dataMax = val;
 						
 						//If we have passed the threshold then break out of the loop
-						if(val > mipThreshold) {
+						if(val > threshold) {
 							break;
 						}
 					}
+					
+					if(grid != null && inside) {
+						// Nothing further along the ray can beat the max, so stop here
+						if(dataMax >= grid.getMaxBound()) {
+							bandSkipped += (dataWidth / 2) - x - 1;
+							break;
+						}
+						
+						int skip = Math.min(grid.getSkippableSamples(newX, newY, newZ, dirX, dirY, dirZ, dataMax), (dataWidth / 2) - x - 1);
+						x += skip;
+						bandSkipped += skip;
+					}
 				}
 				
-				Color c = getRGB(dataMax);
-				thisImageData[(3 * y) + (3 * z * w)] = (byte) c.getBlue();
-				thisImageData[(3 * y) + (3 * z * w) + 1] = (byte) c.getGreen();
-				thisImageData[(3 * y) + (3 * z * w) + 2] = (byte) c.getRed();
+				writeRay(render, lut, dataMax, y + z * w);
 			}
 		}
-		//long runTime = System.currentTimeMillis() - startTime;
 		
-		//System.out.println("Image took " + runTime + " milliseconds to generate");
+		render.samples.add(bandSamples + marched[0]);
+		render.skipped.add(bandSkipped + marched[1]);
+	}
+	
+	private static void writeRay(RotatedRender render, ColorLookupTable lut, short rayMax, int pixel) {
+		if(render.values != null) {
+			render.values[pixel] = rayMax;
+		} else {
+			lut.write(rayMax, false, render.thisImageData, 3 * pixel);
+		}
+	}
+	
+	/*
+	 * Marches one MIP ray through the volume rayStep voxels at a time, only over the part of it inside the volume
+	 * Rather than transforming every sample, the ray is clipped to the volume's bounding box once and each
+	 * sample is i steps on from where it enters (not added up step by step, so skipping can't move the samples)
+	 * Adds the samples taken and skipped to counts[0] and counts[1]
+	 */
+	private short marchRay(double[][] matrixN, float scaledY, float scaledZ, float rayStep, short threshold, boolean trilinear, MinMaxGrid grid, float[] ray, long[] counts) {
+		int samples = enterVolume(matrixN, scaledY, scaledZ, rayStep, ray);
+		if(samples == 0) {
+			// The ray misses the volume, so it only passes through the minimum value
+			return min;
+		}
 		
-		return image;
+		float entryX = ray[0];
+		float entryY = ray[1];
+		float entryZ = ray[2];
+		float stepX = ray[3];
+		float stepY = ray[4];
+		float stepZ = ray[5];
+		
+		short dataMax = Short.MIN_VALUE;
+		for(int i = 0; i < samples; i++) {
+			counts[0]++;
+			float x = entryX + stepX * i;
+			float y = entryY + stepY * i;
+			float z = entryZ + stepZ * i;
+			
+			short val;
+			// Rounding can leave the first or last sample just outside the box
+			boolean inside = !(x < 0 || y < 0 || z < 0 || x >= dataWidth || y >= dataDepth || z >= dataHeight);
+			if(!inside) {
+				val = min;
+			} else if(trilinear) {
+				val = getTrilinearInterpValue(x, y, z);
+			} else {
+				val = store.get((int)x, (int)y, (int)z);
+			}
+			
+			if(val > dataMax) {
+				dataMax = val;
+				
+				//If we have passed the threshold then break out of the loop
+				if(val > threshold) {
+					break;
+				}
+			}
+			
+			if(grid != null && inside) {
+				// Nothing further along the ray can beat the max, so stop here
+				if(dataMax >= grid.getMaxBound()) {
+					counts[1] += samples - i - 1;
+					break;
+				}
+				
+				int skip = Math.min(grid.getSkippableSamples(x, y, z, stepX, stepY, stepZ, dataMax), samples - i - 1);
+				i += skip;
+				counts[1] += skip;
+			}
+		}
+		
+		return dataMax;
+	}
+	
+	/*
+	 * Clips the ray through (scaledY, scaledZ) of the rotated view to the volume's bounding box
+	 * Fills ray with where it enters the volume and the step between samples rayStep voxels apart,
+	 * and returns how many samples lie along it, or 0 if it misses the volume
+	 */
+	private int enterVolume(double[][] matrixN, float scaledY, float scaledZ, float rayStep, float[] ray) {
+		// Where the ray is at x = 0 in the rotated view, and which way it runs through the volume
+		float originX = (float) (matrixN[0][1] * scaledY + matrixN[0][2] * scaledZ) + (dataWidth / 2);
+		float originY = (float) (matrixN[1][1] * scaledY + matrixN[1][2] * scaledZ) + (dataDepth / 2);
+		float originZ = (float) (matrixN[2][1] * scaledY + matrixN[2][2] * scaledZ) + (dataHeight / 2);
+		float dirX = (float) matrixN[0][0];
+		float dirY = (float) matrixN[1][0];
+		float dirZ = (float) matrixN[2][0];
+		
+		// Distances along the ray where it enters and leaves the bounding box
+		float[] range = {-Float.MAX_VALUE, Float.MAX_VALUE};
+		if(!clipRay(originX, dirX, dataWidth, range) || !clipRay(originY, dirY, dataDepth, range) ||
+				!clipRay(originZ, dirZ, dataHeight, range) || range[0] >= range[1]) {
+			return 0;
+		}
+		
+		ray[0] = originX + dirX * range[0];
+		ray[1] = originY + dirY * range[0];
+		ray[2] = originZ + dirZ * range[0];
+		ray[3] = dirX * rayStep;
+		ray[4] = dirY * rayStep;
+		ray[5] = dirZ * rayStep;
+		return (int) ((range[1] - range[0]) / rayStep) + 1;
+	}
+	
+	/*
+	 * Composites one ray front to back through the transfer function, writing the colour it ends up with into dest
+	 * Samples are placed as in marchRay. The ray stops early once it is more opaque than the render's cutoff,
+	 * and blocks that only hold fully transparent values are skipped, neither of which changes the image much or at all
+	 */
+	private void compositeRay(RotatedRender render, float scaledY, float scaledZ, boolean trilinear, float[] ray, long[] counts,
+			byte[] dest, int offset) {
+		float red = 0;
+		float green = 0;
+		float blue = 0;
+		float alpha = 0;
+		
+		int samples = enterVolume(render.matrixN, scaledY, scaledZ, render.rayStep, ray);
+		float entryX = ray[0];
+		float entryY = ray[1];
+		float entryZ = ray[2];
+		float stepX = ray[3];
+		float stepY = ray[4];
+		float stepZ = ray[5];
+		
+		TransferFunction transfer = render.transfer;
+		float[] opacities = render.opacities;
+		MinMaxGrid grid = transfer.hasTransparentValues() ? render.grid : null;
+		short transparentMax = transfer.getTransparentMax();
+		
+		for(int i = 0; i < samples; i++) {
+			counts[0]++;
+			float x = entryX + stepX * i;
+			float y = entryY + stepY * i;
+			float z = entryZ + stepZ * i;
+			
+			short val;
+			// Rounding can leave the first or last sample just outside the box
+			boolean inside = !(x < 0 || y < 0 || z < 0 || x >= dataWidth || y >= dataDepth || z >= dataHeight);
+			if(!inside) {
+				val = min;
+			} else if(trilinear) {
+				val = getTrilinearInterpValue(x, y, z);
+			} else {
+				val = store.get((int)x, (int)y, (int)z);
+			}
+			
+			int index = transfer.indexOf(val);
+			float opacity = opacities[index];
+			if(opacity > 0) {
+				// Whatever is in front has already covered alpha of this sample
+				float weight = (1 - alpha) * opacity;
+				red += weight * transfer.getRed(index);
+				green += weight * transfer.getGreen(index);
+				blue += weight * transfer.getBlue(index);
+				alpha += weight;
+				
+				if(alpha >= render.opacityCutoff) {
+					counts[1] += samples - i - 1;
+					break;
+				}
+			} else if(grid != null && inside) {
+				// Every sample in a block that can't go above the transparent values adds nothing
+				int skip = Math.min(grid.getSkippableSamples(x, y, z, stepX, stepY, stepZ, transparentMax), samples - i - 1);
+				i += skip;
+				counts[1] += skip;
+			}
+		}
+		
+		// Whatever the ray doesn't cover shows the black background
+		dest[offset] = (byte) Math.min(255, (int) blue);
+		dest[offset + 1] = (byte) Math.min(255, (int) green);
+		dest[offset + 2] = (byte) Math.min(255, (int) red);
+	}
+	
+	/*
+	 * Narrows range to the distances along a ray where origin + t * dir lies in [0, size) on one axis
+	 * Returns false if the ray runs parallel to the axis outside of it
+	 */
+	private static boolean clipRay(float origin, float dir, int size, float[] range) {
+		if(dir == 0) {
+			return origin >= 0 && origin < size;
+		}
+		
+		float t0 = (0 - origin) / dir;
+		float t1 = (size - origin) / dir;
+		range[0] = Math.max(range[0], Math.min(t0, t1));
+		range[1] = Math.min(range[1], Math.max(t0, t1));
+		return true;
+	}
+	
+	/*
+	 * Copies the pixel at the top left of every step x step block over the rest of the block
+	 */
+	private void fillBlocks(final short[] values, final int w, int h, final int step) {
+		renderPool.forEachBand(h, new RenderPool.BandRenderer() {
+			@Override
+			public void render(int start, int end) {
+				for(int z = start; z < end; z++) {
+					int sourceZ = z - (z % step);
+					for(int y = 0; y < w; y++) {
+						values[y + z * w] = values[(y - (y % step)) + sourceZ * w];
+					}
+				}
+			}
+		});
+	}
+	private void fillBlocks(final byte[] thisImageData, final int w, int h, final int step) {
+		renderPool.forEachBand(h, new RenderPool.BandRenderer() {
+			@Override
+			public void render(int start, int end) {
+				for(int z = start; z < end; z++) {
+					int sourceZ = z - (z % step);
+					for(int y = 0; y < w; y++) {
+						int source = 3 * (y - (y % step)) + 3 * sourceZ * w;
+						int dest = 3 * y + 3 * z * w;
+						if(source != dest) {
+							thisImageData[dest] = thisImageData[source];
+							thisImageData[dest + 1] = thisImageData[source + 1];
+							thisImageData[dest + 2] = thisImageData[source + 2];
+						}
+					}
+				}
+			}
+		});
+	}
+	
+	/*
+	 * Combines the pitch, yaw and roll rotations into a single matrix
+	 */
+	public static double[][] getRotationMatrix(double angleP, double angleQ, double angleR) {
+		double matrixP[][] = {	{1, 0, 0},
+								{0, Math.cos(angleP), -Math.sin(angleP)},
+								{0, Math.sin(angleP), Math.cos(angleP)}};
+		double matrixQ[][] = {	{Math.cos(angleQ), 0, Math.sin(angleQ)},
+								{0, 1, 0},
+								{-Math.sin(angleQ), 0, Math.cos(angleQ)}};
+		double matrixR[][] = {	{Math.cos(angleR), -Math.sin(angleR), 0},
+								{Math.sin(angleR), Math.cos(angleR), 0},
+								{0, 0, 1}};
+		
+		return multiply(multiply(matrixP, matrixQ), matrixR);
 	}
 	
 	/*
 	 * Returns/updates a BufferedImage with the specified slice on the specified axis
 	 */
 	public BufferedImage sliceImage(BufferedImage image, Axis a, int slice, Interpolation interpolation, boolean equalize) {
-		int w = image.getWidth();
-		int h = image.getHeight();
+		long startTime = System.nanoTime();
+		RenderBuffer buffer = new RenderBuffer(image.getWidth(), image.getHeight());
+		renderSlice(buffer, a, slice, interpolation);
+		buffer.colourise(image, colorTable, equalize, renderPool);
+		recordSlice("slice " + a + " " + interpolation.name(), buffer, startTime);
+		return image;
+	}
+	
+	/*
+	 * Samples a slice into the buffer without colouring it, for colourise to colour as often as needed
+	 */
+	public RenderBuffer sliceValues(RenderBuffer buffer, Axis a, int slice, Interpolation interpolation) {
+		long startTime = System.nanoTime();
+		renderSlice(buffer, a, slice, interpolation);
+		recordSlice("slice " + a + " " + interpolation.name(), buffer, startTime);
+		return buffer;
+	}
+	
+	private void recordSlice(String operation, RenderBuffer buffer, long startTime) {
+		if(metrics != null) {
+			metrics.record(operation, System.nanoTime() - startTime);
+			metrics.addSamples((long) buffer.getWidth() * buffer.getHeight(), 0);
+		}
+	}
+	
+	/*
+	 * Colours a buffer of values into the image with this volume's colour and window, as sliceImage would have
+	 * This is a single lookup per pixel, so changing the colour, window or equalization only needs this again
+	 */
+	public BufferedImage colourise(RenderBuffer buffer, BufferedImage image, boolean equalize) {
+		long startTime = System.nanoTime();
+		buffer.colourise(image, colorTable, equalize, renderPool);
+		if(metrics != null) {
+			metrics.record("colourise", System.nanoTime() - startTime);
+		}
+		return image;
+	}
+	
+	private void renderSlice(RenderBuffer buffer, Axis a, int slice, Interpolation interpolation) {
+		storeLock.readLock().lock();
+		try {
+			sampleSlice(buffer, a, slice, interpolation);
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+	
+	private void sampleSlice(RenderBuffer buffer, Axis a, int slice, Interpolation interpolation) {
+		int w = buffer.getWidth();
+		int h = buffer.getHeight();
 		
 		// Work out the width and height ratio
 		float wr = 0;
@@ -216,7 +838,20 @@ public class VolumeData {
 			throw new IllegalArgumentException("Invalid axis specified: " + a);
 		}
 		
-		byte[] thisImageData = getImageData(image);
+		// Small images are sliced from a halved copy of the volume instead
+		int level = levelFor(Math.min(wr, hr));
+		if(level > 0) {
+			getLevel(level).renderSlice(buffer, a, slice >> level, interpolation);
+			return;
+		}
+		
+		short[] values = buffer.getValues();
+		
+		RenderKernel kernel = interpolation == Interpolation.NearestNeighbour ? kernelFor(store) : null;
+		if(kernel != null) {
+			sliceNearestRows(kernel, values, w, h, wr, hr, a, slice);
+			return;
+		}
 		
 		for(int y = 0; y < h; y++) {
 			for(int x = 0; x < w; x++) {
@@ -237,27 +872,196 @@ public class VolumeData {
 					break;
 				}
 				
-				if(equalize) {
-					//Bound the index to 0 and max, it's possible to get < 0 for resized images
-					int index = val - min;
-					
-					if(index < 0) {
-						index = 0;
-					} else if(index >= histogramMapping.length) {
-						index = histogramMapping.length - 1;
-					}
-					
-					val = histogramMapping[index];
-				}
-				Color c = getRGB(val);
-				thisImageData[(3 * x) + (3 * y * w)] = (byte) c.getBlue();
-				thisImageData[(3 * x) + (3 * y * w) + 1] = (byte) c.getGreen();
-				thisImageData[(3 * x) + (3 * y * w) + 2] = (byte) c.getRed();
+				values[x + y * w] = val;
 			}
 		}
+	}
+	
+	/*
+	 * Returns/updates a BufferedImage with a cut through the volume along any plane, rather than only the three axes
+	 * The plane is made of the points offset voxels from the centre of the volume along the normal, which is in
+	 * (x, y, z) voxel coordinates and need not be unit length
+	 * The image covers as much of the plane as the volume spans along each of the plane's axes, with its rows
+	 * running down z unless the plane lies nearly flat in z, when they run along y instead
+	 */
+	public BufferedImage obliqueSliceImage(BufferedImage image, double normalX, double normalY, double normalZ, double offset,
+			Interpolation interpolation, boolean equalize) {
+		long startTime = System.nanoTime();
+		RenderBuffer buffer = new RenderBuffer(image.getWidth(), image.getHeight());
+		renderOblique(buffer, normalX, normalY, normalZ, offset, interpolation);
+		buffer.colourise(image, colorTable, equalize, renderPool);
+		recordSlice("oblique " + interpolation.name(), buffer, startTime);
 		return image;
 	}
 	
+	/*
+	 * Samples an oblique slice into the buffer without colouring it, for colourise to colour as often as needed
+	 */
+	public RenderBuffer obliqueSliceValues(RenderBuffer buffer, double normalX, double normalY, double normalZ, double offset,
+			Interpolation interpolation) {
+		long startTime = System.nanoTime();
+		renderOblique(buffer, normalX, normalY, normalZ, offset, interpolation);
+		recordSlice("oblique " + interpolation.name(), buffer, startTime);
+		return buffer;
+	}
+	
+	private void renderOblique(RenderBuffer buffer, double normalX, double normalY, double normalZ, double offset,
+			Interpolation interpolation) {
+		storeLock.readLock().lock();
+		try {
+			sampleOblique(buffer, normalX, normalY, normalZ, offset, interpolation);
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+	
+	private void sampleOblique(RenderBuffer buffer, double normalX, double normalY, double normalZ, double offset,
+			Interpolation interpolation) {
+		double length = Math.sqrt(normalX * normalX + normalY * normalY + normalZ * normalZ);
+		if(!(length > 0) || Double.isInfinite(length)) {
+			throw new IllegalArgumentException("Invalid plane normal: " + normalX + ", " + normalY + ", " + normalZ);
+		}
+		double nx = normalX / length;
+		double ny = normalY / length;
+		double nz = normalZ / length;
+		
+		// The image's x axis is up cross the normal and its y axis the normal cross that, where up is z
+		// unless that is too close to the normal to give a well defined axis
+		double upY = Math.abs(nz) < 0.9 ? 0 : 1;
+		double upZ = Math.abs(nz) < 0.9 ? 1 : 0;
+		double ux = upY * nz - upZ * ny;
+		double uy = upZ * nx;
+		double uz = -upY * nx;
+		double uLength = Math.sqrt(ux * ux + uy * uy + uz * uz);
+		ux /= uLength;
+		uy /= uLength;
+		uz /= uLength;
+		double vx = ny * uz - nz * uy;
+		double vy = nz * ux - nx * uz;
+		double vz = nx * uy - ny * ux;
+		
+		// How far the volume's bounding box reaches along each axis of the plane
+		double extentU = Math.abs(ux) * dataWidth + Math.abs(uy) * dataDepth + Math.abs(uz) * dataHeight;
+		double extentV = Math.abs(vx) * dataWidth + Math.abs(vy) * dataDepth + Math.abs(vz) * dataHeight;
+		
+		final int w = buffer.getWidth();
+		int h = buffer.getHeight();
+		
+		// Small images are cut from a halved copy of the volume instead, where every distance is halved too
+		int level = levelFor((float) Math.min(extentU / w, extentV / h));
+		if(level > 0) {
+			getLevel(level).renderOblique(buffer, nx, ny, nz, offset / (1 << level), interpolation);
+			return;
+		}
+		
+		double centreX = dataWidth / 2.0 + offset * nx;
+		double centreY = dataDepth / 2.0 + offset * ny;
+		double centreZ = dataHeight / 2.0 + offset * nz;
+		
+		// The top left pixel, then the steps across a row and down a column
+		final float[] plane = {
+			(float) (centreX - ux * extentU / 2 - vx * extentV / 2),
+			(float) (centreY - uy * extentU / 2 - vy * extentV / 2),
+			(float) (centreZ - uz * extentU / 2 - vz * extentV / 2),
+			(float) (ux * extentU / w), (float) (uy * extentU / w), (float) (uz * extentU / w),
+			(float) (vx * extentV / h), (float) (vy * extentV / h), (float) (vz * extentV / h)
+		};
+		
+		final short[] values = buffer.getValues();
+		final boolean trilinear = interpolation == Interpolation.Linear;
+		renderPool.forEachBand(h, new RenderPool.BandRenderer() {
+			@Override
+			public void render(int start, int end) {
+				renderObliqueRows(values, w, start, end, plane, trilinear);
+			}
+		});
+	}
+	
+	/*
+	 * Samples rows [start, end) of an oblique slice, stepping from one pixel's position to the next by adding
+	 * the step across the row rather than transforming every pixel
+	 */
+	private void renderObliqueRows(short[] values, int w, int start, int end, float[] plane, boolean trilinear) {
+		for(int row = start; row < end; row++) {
+			// Each row starts from the top left pixel, so rounding doesn't build up down the image
+			float x = plane[0] + row * plane[6];
+			float y = plane[1] + row * plane[7];
+			float z = plane[2] + row * plane[8];
+			int offset = row * w;
+			
+			for(int col = 0; col < w; col++) {
+				short val;
+				if(x < 0 || y < 0 || z < 0 || x >= dataWidth || y >= dataDepth || z >= dataHeight) {
+					val = min;
+				} else if(trilinear) {
+					val = getTrilinearInterpValue(x, y, z);
+				} else {
+					val = store.get((int)x, (int)y, (int)z);
+				}
+				values[offset + col] = val;
+				
+				x += plane[3];
+				y += plane[4];
+				z += plane[5];
+			}
+		}
+	}
+	
+	/*
+	 * Returns the kernel if it is turned on and can read the store, which has to be a flat array or a single buffer
+	 * Other stores are rendered with the scalar loops, which is logged the first time it happens
+	 */
+	private RenderKernel kernelFor(VolumeStore store) {
+		RenderKernel kernel = this.kernel;
+		if(kernel == null || store instanceof ArrayVolumeStore
+				|| store instanceof BufferVolumeStore && ((BufferVolumeStore) store).getBuffer() != null) {
+			return kernel;
+		}
+		
+		if(!kernelUnusableLogged) {
+			kernelUnusableLogged = true;
+			LOG.info("The vector kernels need the volume in one array or buffer, so this " + store.getClass().getSimpleName() + " is rendered with the scalar loops");
+		}
+		return null;
+	}
+	
+	/*
+	 * Nearest neighbour slice through a flat array or buffer, a row at a time with the kernel
+	 */
+	private void sliceNearestRows(RenderKernel kernel, short[] values, int w, int h, float wr, float hr, Axis a, int slice) {
+		short[] array = store instanceof ArrayVolumeStore ? ((ArrayVolumeStore) store).getData() : null;
+		ShortBuffer buffer = store instanceof BufferVolumeStore ? ((BufferVolumeStore) store).getBuffer() : null;
+		short[] row = new short[w];
+		for(int y = 0; y < h; y++) {
+			int yi = (int)((float)y * hr);
+			
+			// Where the row starts in the array, and how far apart its voxels are
+			int base;
+			int stride;
+			switch(a) {
+			case X:
+				base = yi * dataDepth * dataWidth + slice;
+				stride = dataWidth;
+				break;
+			case Y:
+				base = (yi * dataDepth + slice) * dataWidth;
+				stride = 1;
+				break;
+			default:
+				base = (slice * dataDepth + yi) * dataWidth;
+				stride = 1;
+				break;
+			}
+			
+			if(array != null) {
+				kernel.sampleNearestRow(array, base, stride, wr, w, row);
+			} else {
+				kernel.sampleNearestRow(buffer, base, stride, wr, w, row);
+			}
+			System.arraycopy(row, 0, values, y * w, w);
+		}
+	}
+	
 	public short getBilinearInterpValue(float x, float y, int slice, Axis a) {
 		int maxX;
 		int maxY;
@@ -322,7 +1126,7 @@ public class VolumeData {
 		if(x == 0 || y == 0 || z == 0 ||
 				x > dataWidth - 1 || y > dataDepth - 1 || z > dataHeight - 1)
 			return min;
-
+		
 		x2 = (float) Math.ceil(x);
 		y2 = (float) Math.ceil(y);
 		z2 = (float) Math.ceil(z);
@@ -335,14 +1139,14 @@ public class VolumeData {
 		float yRatio = (y - y1) / (y2 - y1);
 		float zRatio = (z - z1) / (z2 - z1);
 		
-		float x1y1z1 = imageData[(int)z1][(int)y1][(int)x1];
-		float x2y1z1 = imageData[(int)z1][(int)y1][(int)x2];
-		float x1y2z1 = imageData[(int)z1][(int)y2][(int)x1];
-		float x2y2z1 = imageData[(int)z1][(int)y2][(int)x2];
-		float x1y1z2 = imageData[(int)z2][(int)y1][(int)x1];
-		float x1y2z2 = imageData[(int)z2][(int)y2][(int)x1];
-		float x2y1z2 = imageData[(int)z2][(int)y1][(int)x2];
-		float x2y2z2 = imageData[(int)z2][(int)y2][(int)x2];
+		float x1y1z1 = store.get((int)x1, (int)y1, (int)z1);
+		float x2y1z1 = store.get((int)x2, (int)y1, (int)z1);
+		float x1y2z1 = store.get((int)x1, (int)y2, (int)z1);
+		float x2y2z1 = store.get((int)x2, (int)y2, (int)z1);
+		float x1y1z2 = store.get((int)x1, (int)y1, (int)z2);
+		float x1y2z2 = store.get((int)x1, (int)y2, (int)z2);
+		float x2y1z2 = store.get((int)x2, (int)y1, (int)z2);
+		float x2y2z2 = store.get((int)x2, (int)y2, (int)z2);
 		
 		float c00 = x1y1z1 * (1 - xRatio) + x2y1z1 * xRatio;
 		float c10 = x1y2z1 * (1 - xRatio) + x2y2z1 * xRatio;
@@ -358,52 +1162,57 @@ public class VolumeData {
 	}
 	
 	public short[][][] resizeData(int newWidth, int newDepth, int newHeight) {
-		float wr = (float)dataWidth / (float)newWidth;
-		float dr = (float)dataDepth / (float)newDepth;
-		float hr = (float)dataHeight / (float)newHeight;
-		
-		short[][][] newImageData = new short[newHeight][newDepth][newWidth];
-		
-		for(int z = 0; z < newHeight; z++) {
-			for(int y = 0; y < newDepth; y++) {
-				for(int x = 0; x < newWidth; x++) {
-					newImageData[z][y][x] = getTrilinearInterpValue((float) x * wr, (float) y * dr, (float) z * hr);
-				}
-			}
+		return VolumeStores.toArray(resizeVolume(newWidth, newDepth, newHeight));
+	}
+	
+	/*
+	 * Resamples the volume to the given size with trilinear interpolation, see VolumeResampler
+	 */
+	public VolumeStore resizeVolume(int newWidth, int newDepth, int newHeight) {
+		long startTime = System.nanoTime();
+		VolumeStore newStore = createStore(newWidth, newDepth, newHeight);
+		VolumeResampler.resample(store, newStore, renderPool);
+		if(metrics != null) {
+			metrics.record("resize", System.nanoTime() - startTime);
 		}
-		
-		return newImageData;
+		return newStore;
 	}
-	public short[] getEqualizationMapping() {
-		//Have to use integers here as the values are too large for short
-		int[] histogram = new int[(max - min) + 1];
-		short[] mapping = new short[(max - min) + 1];
-		//Total is equivalent of t in notes, but without use of array
-		int total = 0;
-		//Size of our data set
-		int size = dataHeight * dataDepth * dataWidth;
-		
-		//Initialise the histogram array
-		for(int i = 0; i < histogram.length; i++) {
-			histogram[i] = 0;
-		}
-		
-		for(int z = 0; z < dataHeight; z++) {
-			for(int y = 0; y < dataDepth; y++) {
-				for(int x = 0; x < dataWidth; x++) {
-					short val = imageData[z][y][x];
-					histogram[val - min]++;
-				}
-			}
+	/*
+	 * Quantizes the volume to 8 bits linearly across the window centred on level, see ByteVolumeStore
+	 */
+	public VolumeStore quantizeVolume(int level, int window) {
+		return ByteVolumeStore.quantizeWindow(store, level, window, renderPool);
+	}
+	/*
+	 * Quantizes the volume to 8 bits through the histogram equalization mapping, see ByteVolumeStore
+	 */
+	public VolumeStore quantizeVolumeEqualized() {
+		return ByteVolumeStore.quantizeEqualized(store, statistics, renderPool);
+	}
+	/*
+	 * Quantizes the volume to 8 bits as described by spec, which is either "equalized" or "level,window"
+	 */
+	public VolumeStore quantizeVolume(String spec) {
+		if(spec.equals("equalized")) {
+			return quantizeVolumeEqualized();
 		}
 		
-		for(int i = 0; i < histogram.length; i++) {
-			total += histogram[i];
-			//We keep the mapping to our initial range of min -> max rather than using 0 -> 255
-			mapping[i] = (short) ((max - min) * ((float)total / (float)size) + min);
+		String[] parts = spec.split(",");
+		if(parts.length != 2) {
+			throw new IllegalArgumentException("Expected equalized or level,window but got " + spec);
 		}
-		
-		return mapping;
+		return quantizeVolume(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+	}
+	/*
+	 * Writes the surface where the full resolution volume crosses isoValue to a binary .stl or .ply file
+	 */
+	public IsosurfaceExtractor.Result extractIsosurface(short isoValue, File output) throws IOException {
+		IsosurfaceExtractor.Result result = new IsosurfaceExtractor(store, isoValue, renderPool).extract(output);
+		metrics.record("isosurface", result.getNanos());
+		return result;
+	}
+	public short[] getEqualizationMapping() {
+		return statistics.getEqualizationMapping();
 	}
 	/*
 	 * Returns a value from the data set using the specified axis
@@ -411,11 +1220,11 @@ public class VolumeData {
 	public short getValue(int x, int y, int slice, Axis a) {
 		switch(a) {
 		case X:
-			return imageData[y][x][slice];
+			return store.get(slice, x, y);
 		case Y:
-			return imageData[y][slice][x];
+			return store.get(x, slice, y);
 		case Z:
-			return imageData[slice][y][x];
+			return store.get(x, y, slice);
 		default:
 			return -1;
 		}
@@ -444,35 +1253,188 @@ public class VolumeData {
 		}
 	}
 	
+	/*
+	 * Returns a copy of the image data as a short[height][depth][width] array
+	 * Changes made to the copy are not seen until it is passed back to setImageData
+	 */
 	public short[][][] getImageData() {
-		return imageData;
+		return VolumeStores.toArray(store);
 	}
 	public void setImageData(short[][][] imageData) {
-		this.imageData = imageData;
-		dataHeight = imageData.length;
-		dataDepth = imageData[0].length;
-		dataWidth = imageData[0][0].length;
-		
-		//Re calculate the min and max as it is possible it has changed
-		min = Short.MAX_VALUE;
-		max = Short.MIN_VALUE;
-		for(int z = 0; z < dataHeight; z++) {
-			for(int y = 0; y < dataDepth; y++) {
-				for(int x = 0; x < dataWidth; x++) {
-					short val = imageData[z][y][x];
-
-					if(val > max) {
-						max = val;
-					}
-					if(val < min) {
-						min = val;
-					}
+		setVolumeStore(VolumeStores.copy(imageData, createStore(imageData[0][0].length, imageData[0].length, imageData.length)));
+	}
+	public VolumeStore getVolumeStore() {
+		return store;
+	}
+	public void setVolumeStore(VolumeStore store) {
+		setVolumeStore(store, null);
+	}
+	/*
+	 * Uses statistics already known for the store, such as those stored with a compressed volume,
+	 * or gathers them again if statistics is null
+	 */
+	public void setVolumeStore(VolumeStore store, VolumeStatistics statistics) {
+		long startTime = System.nanoTime();
+		if(statistics == null) {
+			//Re calculate the min, max and histogram as it is possible they have changed
+			statistics = VolumeStatistics.compute(store, renderPool);
+		}
+		MinMaxGrid grid = new MinMaxGrid(store, renderPool);
+		
+		// Everything is gathered before taking the lock, so renders only wait for the swap itself
+		storeLock.writeLock().lock();
+		try {
+			dataHeight = store.getHeight();
+			dataDepth = store.getDepth();
+			dataWidth = store.getWidth();
+			synchronized(settingsLock) {
+				if(store == this.store) {
+					// Such as a streamed volume once its last plane is in, which keeps the user's settings
+					followStatistics(statistics);
+				} else {
+					this.store = store;
+					customTransferFunction = false;
+					windowLow = statistics.getMin();
+					windowHigh = statistics.getMax();
+					applyStatistics(statistics);
 				}
 			}
+			minMaxGrid = grid;
+			loading = false;
+			
+			// Any pyramid was built from the old volume
+			synchronized(this) {
+				levels = null;
+			}
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+		
+		if(metrics != null) {
+			metrics.watchStore(store);
+			metrics.recordLoad(System.nanoTime() - startTime);
+		}
+	}
+	
+	/*
+	 * Takes the statistics of the planes loaded so far, for a volume from whileLoading
+	 * The window and MIP threshold follow the new range unless they have been moved off the old one
+	 */
+	public void updateStatistics(VolumeStatistics statistics) {
+		// Renders in flight finish with the range they started with
+		storeLock.writeLock().lock();
+		try {
+			synchronized(settingsLock) {
+				followStatistics(statistics);
+			}
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+	}
+	
+	// Called holding the store's write lock and settingsLock
+	private void followStatistics(VolumeStatistics statistics) {
+		boolean fullWindow = windowLow == min && windowHigh == max;
+		boolean fullThreshold = mipThreshold == max;
+		if(fullWindow) {
+			windowLow = statistics.getMin();
+			windowHigh = statistics.getMax();
+		}
+		applyStatistics(statistics);
+		if(fullThreshold) {
+			mipThreshold = max;
+		}
+	}
+	
+	// Called holding settingsLock
+	private void applyStatistics(VolumeStatistics statistics) {
+		this.statistics = statistics;
+		min = statistics.getMin();
+		max = statistics.getMax();
+		histogramMapping = statistics.getEqualizationMapping();
+		colorTable = new ColorLookupTable(min, max, color, histogramMapping, windowLow, windowHigh);
+		if(!customTransferFunction) {
+			transferFunction = TransferFunction.createDefault(min, max, color);
+		}
+	}
+	
+	/*
+	 * Returns which level of the pyramid to sample for an image covering ratio voxels per pixel, 0 being this volume
+	 * Each level halves the ratio, and a level is only used while the ratio stays at least 1
+	 */
+	private int levelFor(float ratio) {
+		if(parent != null || !levelOfDetail || loading) {
+			return 0;
 		}
 		
-		//Histogram has also probably changed
-		histogramMapping = getEqualizationMapping();
+		int level = 0;
+		int width = dataWidth;
+		int depth = dataDepth;
+		int height = dataHeight;
+		while(ratio >= 2 && (width > 1 || depth > 1 || height > 1)) {
+			ratio /= 2;
+			level++;
+			width = (width + 1) / 2;
+			depth = (depth + 1) / 2;
+			height = (height + 1) / 2;
+		}
+		return level;
+	}
+	
+	/*
+	 * Returns a level of the pyramid, building it (and any level above it that is missing) if needed
+	 */
+	private synchronized VolumeData getLevel(int level) {
+		if(levels == null) {
+			levels = new VolumeData[levelFor(Float.MAX_VALUE) + 1];
+			levels[0] = this;
+		}
+		
+		if(levels[level] == null) {
+			VolumeData finer = getLevel(level - 1);
+			VolumeStore halved = createStore((finer.dataWidth + 1) / 2, (finer.dataDepth + 1) / 2, (finer.dataHeight + 1) / 2);
+			VolumeResampler.halve(finer.store, halved, renderPool);
+			levels[level] = new VolumeData(this, halved, 1 << level);
+		}
+		
+		// Settings may have changed since the level was last used
+		if(level > 0) {
+			levels[level].inheritSettings();
+		}
+		return levels[level];
+	}
+	
+	/*
+	 * Takes the colours, range and render settings of the parent, so a level looks the same as the full volume
+	 */
+	private void inheritSettings() {
+		min = parent.min;
+		max = parent.max;
+		color = parent.color;
+		histogramMapping = parent.histogramMapping;
+		windowLow = parent.windowLow;
+		windowHigh = parent.windowHigh;
+		colorTable = parent.colorTable;
+		mipThreshold = parent.mipThreshold;
+		raySampling = parent.raySampling;
+		renderMode = parent.renderMode;
+		transferFunction = parent.transferFunction;
+		opacityCutoff = parent.opacityCutoff;
+		metrics = parent.metrics;
+		kernel = parent.kernel;
+		emptySpaceSkipping = parent.emptySpaceSkipping;
+		renderPool = parent.renderPool;
+	}
+	
+	/*
+	 * Creates an empty store of the kind this class has been configured to use
+	 */
+	private static VolumeStore createStore(int width, int depth, int height) {
+		if(OFF_HEAP_VOLUME) {
+			return BufferVolumeStore.allocateDirect(width, depth, height);
+		} else {
+			return new ArrayVolumeStore(width, depth, height);
+		}
 	}
 	/*
 	 * Returns an RGB Color based off a value from the data set
@@ -508,14 +1470,154 @@ public class VolumeData {
 	public short getMaxValue() {
 		return max;
 	}
+	public VolumeStatistics getStatistics() {
+		return statistics;
+	}
+	/*
+	 * True from whileLoading until the finished store is passed to setVolumeStore
+	 */
+	public boolean isLoading() {
+		return loading;
+	}
+	public int getRenderThreads() {
+		return renderPool.getThreads();
+	}
+	/*
+	 * Sets how many threads are used to render images, 1 renders everything on the calling thread
+	 * Renders already running finish on the old threads, which are then stopped
+	 */
+	public synchronized void setRenderThreads(int threads) {
+		RenderPool oldPool = renderPool;
+		renderPool = new RenderPool(threads);
+		oldPool.shutdown();
+	}
+	/*
+	 * Turns skipping of blocks that cannot change a MIP ray on or off, the image is the same either way
+	 */
+	public void setEmptySpaceSkipping(boolean emptySpaceSkipping) {
+		this.emptySpaceSkipping = emptySpaceSkipping;
+	}
+	/*
+	 * Turns the Vector API kernels on or off, returning whether they are now in use
+	 * They are only used on volumes held in a flat array or buffer, other volumes are rendered with the scalar loops
+	 */
+	public boolean setVectorKernel(boolean enabled) {
+		kernel = enabled ? RenderKernels.getVectorKernel() : null;
+		return kernel != null;
+	}
+	public boolean isVectorKernel() {
+		return kernel != null;
+	}
+	/*
+	 * Turns sampling small images from halved copies of the volume on or off
+	 * With it off every image samples the full volume, however small it is
+	 */
+	public void setLevelOfDetail(boolean levelOfDetail) {
+		this.levelOfDetail = levelOfDetail;
+	}
+	public boolean isLevelOfDetail() {
+		return levelOfDetail;
+	}
+	/*
+	 * Number of pyramid levels below the full volume that have been built so far
+	 */
+	public synchronized int getBuiltLevels() {
+		int built = 0;
+		if(levels != null) {
+			for(int i = 1; i < levels.length; i++) {
+				if(levels[i] != null) {
+					built++;
+				}
+			}
+		}
+		return built;
+	}
+	public RenderMetrics getMetrics() {
+		return metrics;
+	}
+	public MinMaxGrid getMinMaxGrid() {
+		return minMaxGrid;
+	}
+	/*
+	 * Fraction of MIP samples that were skipped in the last rotated image
+	 */
+	public double getLastSkipRatio() {
+		return lastSkipRatio;
+	}
 	public void setMIPThreshold(short mipThreshold) {
-		this.mipThreshold = mipThreshold;
+		synchronized(settingsLock) {
+			this.mipThreshold = mipThreshold;
+		}
+	}
+	public RaySampling getRaySampling() {
+		return raySampling;
+	}
+	/*
+	 * Chooses between the fixed samples of the original MIP and marching rays at a set step, smaller steps look better but are slower
+	 */
+	public void setRaySampling(RaySampling raySampling) {
+		this.raySampling = raySampling;
+	}
+	public RenderMode getRenderMode() {
+		return renderMode;
+	}
+	/*
+	 * Chooses between maximum intensity projection and compositing the rays through the transfer function
+	 */
+	public void setRenderMode(RenderMode renderMode) {
+		this.renderMode = renderMode;
+	}
+	public TransferFunction getTransferFunction() {
+		return transferFunction;
+	}
+	/*
+	 * Sets the colours and opacities used when compositing, until a different volume is set
+	 * Statistics updates while a volume streams in leave it alone
+	 */
+	public void setTransferFunction(TransferFunction transferFunction) {
+		synchronized(settingsLock) {
+			this.transferFunction = transferFunction;
+			customTransferFunction = true;
+		}
+	}
+	public float getOpacityCutoff() {
+		return opacityCutoff;
+	}
+	/*
+	 * Sets how opaque a composited ray has to get before the rest of it is skipped, 1 only stops rays that are fully opaque
+	 */
+	public void setOpacityCutoff(float opacityCutoff) {
+		if(!(opacityCutoff > 0)) {
+			throw new IllegalArgumentException("Opacity cutoff must be above 0: " + opacityCutoff);
+		}
+		this.opacityCutoff = opacityCutoff;
 	}
 	public Color getColor() {
 		return color;
 	}
 	public void setColor(Color color) {
-		this.color = color;
+		synchronized(settingsLock) {
+			this.color = color;
+			colorTable = new ColorLookupTable(min, max, color, histogramMapping, windowLow, windowHigh);
+		}
+	}
+	/*
+	 * Spreads the colour over values from low to high only, for looking at a narrow band such as soft tissue
+	 * Values at or below low are drawn black and those at or above high in the full colour
+	 * Buffers from sliceValues and getRotatedValues only need colourise again to show the new window
+	 */
+	public void setWindow(short low, short high) {
+		synchronized(settingsLock) {
+			colorTable = new ColorLookupTable(min, max, color, histogramMapping, low, high);
+			windowLow = low;
+			windowHigh = high;
+		}
+	}
+	public short getWindowLow() {
+		return windowLow;
+	}
+	public short getWindowHigh() {
+		return windowHigh;
 	}
 	
 	public static double[][] multiply(double[][] matrixP, double[][] matrixQ) {
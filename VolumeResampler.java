@@ -0,0 +1,356 @@
+import java.io.IOException;
+
+/*
+ * Resizes a volume with trilinear interpolation, done as three 1-D passes (x, then y, then z)
+ * Each output voxel is worked out with the same float arithmetic as VolumeData.getTrilinearInterpValue,
+ * but samples past the edges are clamped to the edge voxel instead of being given the minimum value
+ *
+ * Bands of output planes are resampled on separate threads. Each band resamples the source planes
+ * it needs in x and y, keeping the last two so neighbouring output planes can share them
+ */
+public class VolumeResampler {
+	private VolumeResampler() {
+	}
+	
+	/*
+	 * The two source indices and weights each output index along one axis is blended from
+	 */
+	private static final class AxisWeights {
+		final int[] low;
+		final int[] high;
+		// Weight of the high index, and of the low index, as (1 - ratio) is in the scalar code
+		final float[] ratio;
+		final float[] inverse;
+		
+		AxisWeights(int sourceLength, int targetLength) {
+			low = new int[targetLength];
+			high = new int[targetLength];
+			ratio = new float[targetLength];
+			inverse = new float[targetLength];
+			
+			float scale = (float)sourceLength / (float)targetLength;
+			for(int i = 0; i < targetLength; i++) {
+				float p = (float) i * scale;
+				
+				if(p > sourceLength - 1) {
+					// Past the last voxel, so just use it
+					low[i] = sourceLength - 1;
+					high[i] = sourceLength - 1;
+					ratio[i] = 1;
+				} else {
+					// Same neighbours and ratio as getTrilinearInterpValue, which always has x2 - x1 = 1
+					float p2 = (float) Math.ceil(p);
+					float p1 = p2 - 1;
+					ratio[i] = (p - p1) / (p2 - p1);
+					high[i] = (int) p2;
+					// At 0 the low neighbour is before the volume, but its weight is 0
+					low[i] = Math.max(0, (int) p1);
+				}
+				inverse[i] = 1 - ratio[i];
+			}
+		}
+	}
+	
+	/*
+	 * Fills target with source resized to the target's dimensions, using the pool's threads
+	 */
+	public static void resample(final VolumeStore source, final VolumeStore target, RenderPool pool) {
+		final AxisWeights xWeights = new AxisWeights(source.getWidth(), target.getWidth());
+		final AxisWeights yWeights = new AxisWeights(source.getDepth(), target.getDepth());
+		final AxisWeights zWeights = new AxisWeights(source.getHeight(), target.getHeight());
+		
+		pool.forEachBand(target.getHeight(), new RenderPool.BandRenderer() {
+			@Override
+			public void render(int start, int end) {
+				new Band(source, target, xWeights, yWeights, zWeights).resample(start, end);
+			}
+		});
+	}
+	
+	/*
+	 * Fills target with source halved in every dimension, each voxel being the rounded average of the
+	 * 2x2x2 block of source voxels it covers. Blocks that hang over an odd edge reuse the edge voxels
+	 * The target should be (size + 1) / 2 along each axis
+	 */
+	public static void halve(final VolumeStore source, final VolumeStore target, RenderPool pool) {
+		if(source instanceof BrickedVolumeStore) {
+			if(((BrickedVolumeStore) source).getBrickSize() == 1) {
+				halvePlanes((BrickedVolumeStore) source, target, pool);
+			} else {
+				halveBricks((BrickedVolumeStore) source, target, pool);
+			}
+			return;
+		}
+		
+		final int sourceWidth = source.getWidth();
+		final int sourceDepth = source.getDepth();
+		final int sourceHeight = source.getHeight();
+		final int targetWidth = target.getWidth();
+		final int targetDepth = target.getDepth();
+		
+		pool.forEachBand(target.getHeight(), new RenderPool.BandRenderer() {
+			@Override
+			public void render(int start, int end) {
+				for(int z = start; z < end; z++) {
+					int z1 = Math.min(2 * z, sourceHeight - 1);
+					int z2 = Math.min(2 * z + 1, sourceHeight - 1);
+					for(int y = 0; y < targetDepth; y++) {
+						int y1 = Math.min(2 * y, sourceDepth - 1);
+						int y2 = Math.min(2 * y + 1, sourceDepth - 1);
+						for(int x = 0; x < targetWidth; x++) {
+							int x1 = Math.min(2 * x, sourceWidth - 1);
+							int x2 = Math.min(2 * x + 1, sourceWidth - 1);
+							
+							int sum = source.get(x1, y1, z1) + source.get(x2, y1, z1) + source.get(x1, y2, z1) + source.get(x2, y2, z1)
+									+ source.get(x1, y1, z2) + source.get(x2, y1, z2) + source.get(x1, y2, z2) + source.get(x2, y2, z2);
+							target.set(x, y, z, (short) Math.floorDiv(sum + 4, 8));
+						}
+					}
+				}
+			}
+		});
+	}
+	
+	/*
+	 * Halves a bricked volume a brick at a time straight from its file, so building the pyramid doesn't push the
+	 * bricks views are using out of the cache. Bricks have an even size and start on even voxels, so every 2x2x2
+	 * block, and the edge voxels an odd edge reuses, lies in a single brick
+	 */
+	private static void halveBricks(final BrickedVolumeStore source, final VolumeStore target, RenderPool pool) {
+		final int sourceWidth = source.getWidth();
+		final int sourceDepth = source.getDepth();
+		final int sourceHeight = source.getHeight();
+		final int brickSize = source.getBrickSize();
+		final int half = brickSize / 2;
+		
+		pool.forEachBand(source.getBricksZ(), new RenderPool.BandRenderer() {
+			@Override
+			public void render(int start, int end) {
+				try {
+					source.readBricks(start, end, new BrickedVolumeStore.BrickVisitor() {
+						@Override
+						public void visit(int bx, int by, int bz, short[] data) {
+							int x0 = bx * brickSize;
+							int y0 = by * brickSize;
+							int z0 = bz * brickSize;
+							int zEnd = Math.min(bz * half + half, target.getHeight());
+							int yEnd = Math.min(by * half + half, target.getDepth());
+							int xEnd = Math.min(bx * half + half, target.getWidth());
+							for(int z = bz * half; z < zEnd; z++) {
+								int z1 = (Math.min(2 * z, sourceHeight - 1) - z0) * brickSize;
+								int z2 = (Math.min(2 * z + 1, sourceHeight - 1) - z0) * brickSize;
+								for(int y = by * half; y < yEnd; y++) {
+									int y1 = Math.min(2 * y, sourceDepth - 1) - y0;
+									int y2 = Math.min(2 * y + 1, sourceDepth - 1) - y0;
+									int row11 = (z1 + y1) * brickSize;
+									int row12 = (z1 + y2) * brickSize;
+									int row21 = (z2 + y1) * brickSize;
+									int row22 = (z2 + y2) * brickSize;
+									for(int x = bx * half; x < xEnd; x++) {
+										int x1 = Math.min(2 * x, sourceWidth - 1) - x0;
+										int x2 = Math.min(2 * x + 1, sourceWidth - 1) - x0;
+										
+										int sum = data[row11 + x1] + data[row11 + x2] + data[row12 + x1] + data[row12 + x2]
+												+ data[row21 + x1] + data[row21 + x2] + data[row22 + x1] + data[row22 + x2];
+										target.set(x, y, z, (short) Math.floorDiv(sum + 4, 8));
+									}
+								}
+							}
+						}
+					});
+				} catch(IOException e) {
+					throw new IllegalStateException("Could not read the bricked volume", e);
+				}
+			}
+		});
+	}
+	
+	/*
+	 * Halves a volume of single voxel bricks straight from its file, where each layer of bricks is one plane,
+	 * reading the two planes behind each output plane
+	 */
+	private static void halvePlanes(final BrickedVolumeStore source, final VolumeStore target, RenderPool pool) {
+		final int sourceWidth = source.getWidth();
+		final int sourceDepth = source.getDepth();
+		final int sourceHeight = source.getHeight();
+		
+		pool.forEachBand(target.getHeight(), new RenderPool.BandRenderer() {
+			@Override
+			public void render(int start, int end) {
+				final short[][] planes = new short[2][sourceWidth * sourceDepth];
+				try {
+					for(int z = start; z < end; z++) {
+						for(int p = 0; p < 2; p++) {
+							final short[] plane = planes[p];
+							int layer = Math.min(2 * z + p, sourceHeight - 1);
+							source.readBricks(layer, layer + 1, new BrickedVolumeStore.BrickVisitor() {
+								@Override
+								public void visit(int bx, int by, int bz, short[] data) {
+									plane[by * sourceWidth + bx] = data[0];
+								}
+							});
+						}
+						
+						for(int y = 0; y < target.getDepth(); y++) {
+							int row1 = Math.min(2 * y, sourceDepth - 1) * sourceWidth;
+							int row2 = Math.min(2 * y + 1, sourceDepth - 1) * sourceWidth;
+							for(int x = 0; x < target.getWidth(); x++) {
+								int x1 = Math.min(2 * x, sourceWidth - 1);
+								int x2 = Math.min(2 * x + 1, sourceWidth - 1);
+								
+								int sum = planes[0][row1 + x1] + planes[0][row1 + x2] + planes[0][row2 + x1] + planes[0][row2 + x2]
+										+ planes[1][row1 + x1] + planes[1][row1 + x2] + planes[1][row2 + x1] + planes[1][row2 + x2];
+								target.set(x, y, z, (short) Math.floorDiv(sum + 4, 8));
+							}
+						}
+					}
+				} catch(IOException e) {
+					throw new IllegalStateException("Could not read the bricked volume", e);
+				}
+			}
+		});
+	}
+	
+	/*
+	 * Working buffers for one band of output planes
+	 */
+	private static final class Band {
+		private final VolumeStore source;
+		private final VolumeStore target;
+		private final short[] sourceData;
+		private final short[] targetData;
+		private final AxisWeights xWeights;
+		private final AxisWeights yWeights;
+		private final AxisWeights zWeights;
+		
+		private final int sourceWidth;
+		private final int sourceDepth;
+		private final int targetWidth;
+		private final int targetDepth;
+		
+		// Source rows resampled in x, and which of them the y pass reads
+		private final float[] rows;
+		private final boolean[] rowNeeded;
+		// The last two source planes resampled in x and y, and which planes they hold
+		private final float[][] planes = new float[2][];
+		private final int[] planeIndex = {-1, -1};
+		
+		Band(VolumeStore source, VolumeStore target, AxisWeights xWeights, AxisWeights yWeights, AxisWeights zWeights) {
+			this.source = source;
+			this.target = target;
+			this.xWeights = xWeights;
+			this.yWeights = yWeights;
+			this.zWeights = zWeights;
+			sourceData = source instanceof ArrayVolumeStore ? ((ArrayVolumeStore) source).getData() : null;
+			targetData = target instanceof ArrayVolumeStore ? ((ArrayVolumeStore) target).getData() : null;
+			
+			sourceWidth = source.getWidth();
+			sourceDepth = source.getDepth();
+			targetWidth = target.getWidth();
+			targetDepth = target.getDepth();
+			
+			rows = new float[sourceDepth * targetWidth];
+			rowNeeded = new boolean[sourceDepth];
+			for(int y = 0; y < targetDepth; y++) {
+				rowNeeded[yWeights.low[y]] = true;
+				rowNeeded[yWeights.high[y]] = true;
+			}
+			planes[0] = new float[targetDepth * targetWidth];
+			planes[1] = new float[targetDepth * targetWidth];
+		}
+		
+		void resample(int start, int end) {
+			int planeSize = targetDepth * targetWidth;
+			
+			for(int z = start; z < end; z++) {
+				float[] low = plane(zWeights.low[z], -1);
+				float[] high = plane(zWeights.high[z], zWeights.low[z]);
+				float inverse = zWeights.inverse[z];
+				float ratio = zWeights.ratio[z];
+				
+				// z pass, blending the two resampled planes either side
+				if(targetData != null) {
+					int offset = z * planeSize;
+					for(int i = 0; i < planeSize; i++) {
+						targetData[offset + i] = (short) (low[i] * inverse + high[i] * ratio);
+					}
+				} else {
+					for(int y = 0, i = 0; y < targetDepth; y++) {
+						for(int x = 0; x < targetWidth; x++, i++) {
+							target.set(x, y, z, (short) (low[i] * inverse + high[i] * ratio));
+						}
+					}
+				}
+			}
+		}
+		
+		/*
+		 * Returns source plane z resampled in x and y, reusing it if it is one of the last two
+		 * The plane held for keep is never overwritten
+		 */
+		private float[] plane(int z, int keep) {
+			if(planeIndex[0] == z) {
+				return planes[0];
+			}
+			if(planeIndex[1] == z) {
+				return planes[1];
+			}
+			
+			// Otherwise overwrite whichever plane is further behind, as planes are asked for in increasing order
+			int slot;
+			if(planeIndex[0] == keep) {
+				slot = 1;
+			} else if(planeIndex[1] == keep) {
+				slot = 0;
+			} else {
+				slot = planeIndex[0] < planeIndex[1] ? 0 : 1;
+			}
+			resamplePlane(z, planes[slot]);
+			planeIndex[slot] = z;
+			return planes[slot];
+		}
+		
+		private void resamplePlane(int z, float[] plane) {
+			int[] xLow = xWeights.low;
+			int[] xHigh = xWeights.high;
+			float[] xRatio = xWeights.ratio;
+			float[] xInverse = xWeights.inverse;
+			
+			// x pass, over each source row the y pass needs
+			for(int y = 0; y < sourceDepth; y++) {
+				if(!rowNeeded[y]) {
+					continue;
+				}
+				
+				int rowOffset = y * targetWidth;
+				if(sourceData != null) {
+					int sourceOffset = (z * sourceDepth + y) * sourceWidth;
+					for(int x = 0; x < targetWidth; x++) {
+						float x1 = sourceData[sourceOffset + xLow[x]];
+						float x2 = sourceData[sourceOffset + xHigh[x]];
+						rows[rowOffset + x] = x1 * xInverse[x] + x2 * xRatio[x];
+					}
+				} else {
+					for(int x = 0; x < targetWidth; x++) {
+						float x1 = source.get(xLow[x], y, z);
+						float x2 = source.get(xHigh[x], y, z);
+						rows[rowOffset + x] = x1 * xInverse[x] + x2 * xRatio[x];
+					}
+				}
+			}
+			
+			// y pass, blending the two resampled rows either side
+			for(int y = 0; y < targetDepth; y++) {
+				int low = yWeights.low[y] * targetWidth;
+				int high = yWeights.high[y] * targetWidth;
+				float inverse = yWeights.inverse[y];
+				float ratio = yWeights.ratio[y];
+				
+				int planeOffset = y * targetWidth;
+				for(int x = 0; x < targetWidth; x++) {
+					plane[planeOffset + x] = rows[low + x] * inverse + rows[high + x] * ratio;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,252 @@
+import java.io.IOException;
+
+/*
+ * The min, max, histogram and mean of a volume, gathered in a single pass
+ * Each band of planes counts into its own histogram on its render thread, and the bands are
+ * merged at the end, so the scan never shares anything between threads
+ */
+public class VolumeStatistics {
+	// Every short value has a slot while scanning, as the min isn't known until the end
+	private static final int VALUES = 1 << 16;
+	
+	private final short min;
+	private final short max;
+	// Counts for each value from min to max
+	private final long[] histogram;
+	private final long count;
+	private final double mean;
+	
+	private VolumeStatistics(short min, short max, long[] histogram) {
+		this.min = min;
+		this.max = max;
+		this.histogram = histogram;
+		
+		long total = 0;
+		double sum = 0;
+		for(int i = 0; i < histogram.length; i++) {
+			total += histogram[i];
+			sum += (double) histogram[i] * (min + i);
+		}
+		count = total;
+		mean = total == 0 ? 0 : sum / total;
+	}
+	
+	/*
+	 * Scans the whole store once, splitting the planes across the pool's threads
+	 */
+	public static VolumeStatistics compute(final VolumeStore store, RenderPool pool) {
+		if(store instanceof BrickedVolumeStore) {
+			return fromCounts(countBricks((BrickedVolumeStore) store, pool));
+		}
+		
+		final long[] merged = new long[VALUES];
+		final int width = store.getWidth();
+		final int depth = store.getDepth();
+		final short[] data = store instanceof ArrayVolumeStore ? ((ArrayVolumeStore) store).getData() : null;
+		final ByteVolumeStore byteStore = store instanceof ByteVolumeStore ? (ByteVolumeStore) store : null;
+		
+		pool.forEachBand(store.getHeight(), new RenderPool.BandRenderer() {
+			@Override
+			public void render(int start, int end) {
+				int[] bandHistogram = new int[VALUES];
+				
+				if(data != null) {
+					// Planes are contiguous in the array, so a band is one run of it
+					int from = start * depth * width;
+					int to = end * depth * width;
+					for(int i = from; i < to; i++) {
+						bandHistogram[data[i] - Short.MIN_VALUE]++;
+					}
+				} else if(byteStore != null) {
+					// Count the levels, then move each level's count to the value it stands for
+					byte[] levels = byteStore.getData();
+					int[] levelCounts = new int[ByteVolumeStore.LEVELS];
+					int from = start * depth * width;
+					int to = end * depth * width;
+					for(int i = from; i < to; i++) {
+						levelCounts[levels[i] & 0xff]++;
+					}
+					for(int level = 0; level < ByteVolumeStore.LEVELS; level++) {
+						bandHistogram[byteStore.getLevelValue(level) - Short.MIN_VALUE] += levelCounts[level];
+					}
+				} else {
+					for(int z = start; z < end; z++) {
+						for(int y = 0; y < depth; y++) {
+							for(int x = 0; x < width; x++) {
+								bandHistogram[store.get(x, y, z) - Short.MIN_VALUE]++;
+							}
+						}
+					}
+				}
+				
+				synchronized(merged) {
+					for(int i = 0; i < VALUES; i++) {
+						merged[i] += bandHistogram[i];
+					}
+				}
+			}
+		});
+		
+		return fromCounts(merged);
+	}
+	
+	/*
+	 * Counts a bricked volume a layer of bricks at a time straight from its file, so the scan doesn't fill its cache
+	 */
+	private static long[] countBricks(final BrickedVolumeStore store, RenderPool pool) {
+		final long[] merged = new long[VALUES];
+		final int brickSize = store.getBrickSize();
+		
+		pool.forEachBand(store.getBricksZ(), new RenderPool.BandRenderer() {
+			@Override
+			public void render(int start, int end) {
+				final int[] bandHistogram = new int[VALUES];
+				try {
+					store.readBricks(start, end, new BrickedVolumeStore.BrickVisitor() {
+						@Override
+						public void visit(int bx, int by, int bz, short[] data) {
+							// Bricks on the far edges are padded, and the padding isn't part of the volume
+							int xs = Math.min(brickSize, store.getWidth() - bx * brickSize);
+							int ys = Math.min(brickSize, store.getDepth() - by * brickSize);
+							int zs = Math.min(brickSize, store.getHeight() - bz * brickSize);
+							for(int z = 0; z < zs; z++) {
+								for(int y = 0; y < ys; y++) {
+									int row = (z * brickSize + y) * brickSize;
+									for(int x = 0; x < xs; x++) {
+										bandHistogram[data[row + x] - Short.MIN_VALUE]++;
+									}
+								}
+							}
+						}
+					});
+				} catch(IOException e) {
+					throw new IllegalStateException("Could not read the bricked volume", e);
+				}
+				
+				synchronized(merged) {
+					for(int i = 0; i < VALUES; i++) {
+						merged[i] += bandHistogram[i];
+					}
+				}
+			}
+		});
+		return merged;
+	}
+	
+	/*
+	 * Trims counts indexed by value - Short.MIN_VALUE down to the values from the smallest to the largest present
+	 */
+	private static VolumeStatistics fromCounts(long[] counts) {
+		int first = 0;
+		while(first < VALUES && counts[first] == 0) {
+			first++;
+		}
+		if(first == VALUES) {
+			// An empty volume, treat it as a single value so the ranges built from it are valid
+			return new VolumeStatistics((short) 0, (short) 0, new long[1]);
+		}
+		int last = VALUES - 1;
+		while(counts[last] == 0) {
+			last--;
+		}
+		
+		long[] histogram = new long[last - first + 1];
+		System.arraycopy(counts, first, histogram, 0, histogram.length);
+		return new VolumeStatistics((short) (first + Short.MIN_VALUE), (short) (last + Short.MIN_VALUE), histogram);
+	}
+	
+	/*
+	 * Counts values as a volume arrives a piece at a time, so its statistics are always known without rescanning it
+	 * An accumulator is meant to be filled from one thread, the one that loads the volume
+	 */
+	public static final class Accumulator {
+		private final long[] counts = new long[VALUES];
+		
+		public void add(short[] values, int from, int to) {
+			for(int i = from; i < to; i++) {
+				counts[values[i] - Short.MIN_VALUE]++;
+			}
+		}
+		
+		/*
+		 * Returns the statistics of every value added so far, which costs the same however many there have been
+		 */
+		public VolumeStatistics snapshot() {
+			return fromCounts(counts);
+		}
+	}
+	
+	/*
+	 * Rebuilds statistics from a histogram stored earlier, such as in a compressed volume's header
+	 */
+	public static VolumeStatistics fromHistogram(short min, short max, long[] histogram) {
+		if(max < min || histogram.length != max - min + 1) {
+			throw new IllegalArgumentException("Expected " + (max - min + 1) + " counts for values " + min + " to " + max + " but got " + histogram.length);
+		}
+		return new VolumeStatistics(min, max, histogram.clone());
+	}
+	
+	/*
+	 * Builds the mapping used by histogram equalization, from each value in [min, max] to its
+	 * equalized value, still within [min, max] rather than 0 to 255
+	 */
+	public short[] getEqualizationMapping() {
+		short[] mapping = new short[histogram.length];
+		long total = 0;
+		
+		for(int i = 0; i < histogram.length; i++) {
+			total += histogram[i];
+			mapping[i] = (short) ((max - min) * ((float)total / (float)count) + min);
+		}
+		
+		return mapping;
+	}
+	
+	/*
+	 * Returns the smallest value that at least percent% of the voxels are less than or equal to
+	 */
+	public short getPercentile(double percent) {
+		if(percent < 0 || percent > 100) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percent);
+		}
+		
+		// The rank of the voxel we want, counting from 1
+		long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+		long total = 0;
+		for(int i = 0; i < histogram.length; i++) {
+			total += histogram[i];
+			if(total >= rank) {
+				return (short) (min + i);
+			}
+		}
+		return max;
+	}
+	
+	public short getMin() {
+		return min;
+	}
+	public short getMax() {
+		return max;
+	}
+	public long getCount() {
+		return count;
+	}
+	public double getMean() {
+		return mean;
+	}
+	/*
+	 * Number of voxels holding the given value
+	 */
+	public long getCount(short value) {
+		if(value < min || value > max) {
+			return 0;
+		}
+		return histogram[value - min];
+	}
+	/*
+	 * Returns a copy of the histogram, with the count for value v at index v - min
+	 */
+	public long[] getHistogram() {
+		return histogram.clone();
+	}
+}
@@ -0,0 +1,13 @@
+/*
+ * Holds the voxels of a volume
+ * Voxels are addressed by x (width), y (depth) and z (height), which matches the
+ * order the data is stored in on disk, so x is always the fastest changing index
+ */
+public interface VolumeStore {
+	public int getWidth();
+	public int getDepth();
+	public int getHeight();
+	
+	public short get(int x, int y, int z);
+	public void set(int x, int y, int z, short val);
+}
@@ -0,0 +1,71 @@
+/*
+ * Converts between VolumeStores and the short[height][depth][width] arrays the rest of the code used to pass around
+ */
+public final class VolumeStores {
+	private VolumeStores() {
+	}
+	
+	public static ArrayVolumeStore fromArray(short[][][] imageData) {
+		ArrayVolumeStore store = new ArrayVolumeStore(imageData[0][0].length, imageData[0].length, imageData.length);
+		copy(imageData, store);
+		return store;
+	}
+	
+	/*
+	 * Copies a short[height][depth][width] array into a store of the same size
+	 */
+	public static VolumeStore copy(short[][][] imageData, VolumeStore store) {
+		int width = store.getWidth();
+		int depth = store.getDepth();
+		int height = store.getHeight();
+		
+		if(imageData.length != height || imageData[0].length != depth || imageData[0][0].length != width) {
+			throw new IllegalArgumentException("Image data does not match the size of the store");
+		}
+		
+		if(store instanceof ArrayVolumeStore) {
+			// Copy each row across in one go, as rows are contiguous in the flat array too
+			short[] data = ((ArrayVolumeStore) store).getData();
+			for(int z = 0; z < height; z++) {
+				for(int y = 0; y < depth; y++) {
+					System.arraycopy(imageData[z][y], 0, data, (z * depth + y) * width, width);
+				}
+			}
+		} else {
+			for(int z = 0; z < height; z++) {
+				for(int y = 0; y < depth; y++) {
+					for(int x = 0; x < width; x++) {
+						store.set(x, y, z, imageData[z][y][x]);
+					}
+				}
+			}
+		}
+		return store;
+	}
+	
+	public static short[][][] toArray(VolumeStore store) {
+		int width = store.getWidth();
+		int depth = store.getDepth();
+		int height = store.getHeight();
+		
+		short[][][] imageData = new short[height][depth][width];
+		
+		if(store instanceof ArrayVolumeStore) {
+			short[] data = ((ArrayVolumeStore) store).getData();
+			for(int z = 0; z < height; z++) {
+				for(int y = 0; y < depth; y++) {
+					System.arraycopy(data, (z * depth + y) * width, imageData[z][y], 0, width);
+				}
+			}
+		} else {
+			for(int z = 0; z < height; z++) {
+				for(int y = 0; y < depth; y++) {
+					for(int x = 0; x < width; x++) {
+						imageData[z][y][x] = store.get(x, y, z);
+					}
+				}
+			}
+		}
+		return imageData;
+	}
+}